@@ -0,0 +1,242 @@
+package us.hgk.caser.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the binary serialization generated for {@link Arith} (from
+ * {@code src/jmh/specs/Arith.yml}) with Java serialization through
+ * {@link ObjectOutputStream} and {@link ObjectInputStream}. Generated unions
+ * are not {@link Serializable}, so Java serialization is measured on
+ * {@link SerialArith}, a hand-written class hierarchy of the same shape
+ * holding the same values.
+ * <p>
+ * The values are balanced trees of sums, scaled by depth, with negations and
+ * a mix of numbers and variables. Each Java serialization operation uses a
+ * new stream, as separate messages would, so it includes writing or reading
+ * the class descriptors. Before any depth is measured, the setup checks that
+ * both forms round-trip, and fails otherwise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+	/**
+	 * The same expression as an {@link Arith} and as a {@link SerialArith},
+	 * with each already encoded.
+	 */
+	@State(Scope.Thread)
+	public static class Value {
+		@Param({ "0", "4", "10" })
+		public int depth;
+
+		Arith arith;
+		SerialArith serialArith;
+
+		byte[] binary;
+		byte[] serialized;
+
+		// Reused by the writing benchmarks
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream dataOut = new DataOutputStream(bytes);
+
+		@Setup
+		public void setup() throws IOException, ClassNotFoundException {
+			arith = buildArith(depth, 0);
+			serialArith = buildSerialArith(depth, 0);
+
+			binary = writeBinary(this);
+			serialized = writeSerialized(this);
+
+			if (!arith.equals(readBinary(binary))) {
+				throw new IllegalStateException("Binary serialization does not round-trip at depth " + depth);
+			}
+			if (!serialArith.equals(readSerialized(serialized))) {
+				throw new IllegalStateException("Java serialization does not round-trip at depth " + depth);
+			}
+		}
+	}
+
+	private static Arith buildArith(int depth, int seed) {
+		if (depth == 0) {
+			return (seed % 2 == 0) ? Arith.Cases.Num.of(seed * 1000003L) : Arith.Cases.Var.of("v" + seed);
+		}
+		Arith left = buildArith(depth - 1, 2 * seed);
+		Arith right = buildArith(depth - 1, 2 * seed + 1);
+		return Arith.Cases.Add.of(left, (depth % 3 == 0) ? Arith.Cases.Neg.of(right) : right);
+	}
+
+	private static SerialArith buildSerialArith(int depth, int seed) {
+		if (depth == 0) {
+			return (seed % 2 == 0) ? new SerialArith.Num(seed * 1000003L) : new SerialArith.Var("v" + seed);
+		}
+		SerialArith left = buildSerialArith(depth - 1, 2 * seed);
+		SerialArith right = buildSerialArith(depth - 1, 2 * seed + 1);
+		return new SerialArith.Add(left, (depth % 3 == 0) ? new SerialArith.Neg(right) : right);
+	}
+
+	private static byte[] writeBinary(Value value) throws IOException {
+		value.bytes.reset();
+		value.arith.writeTo(value.dataOut);
+		value.dataOut.flush();
+		return value.bytes.toByteArray();
+	}
+
+	private static Arith readBinary(byte[] binary) throws IOException {
+		return Arith.readFrom(new DataInputStream(new ByteArrayInputStream(binary)));
+	}
+
+	private static byte[] writeSerialized(Value value) throws IOException {
+		value.bytes.reset();
+		ObjectOutputStream out = new ObjectOutputStream(value.bytes);
+		out.writeObject(value.serialArith);
+		out.flush();
+		return value.bytes.toByteArray();
+	}
+
+	private static SerialArith readSerialized(byte[] serialized) throws IOException, ClassNotFoundException {
+		return (SerialArith) new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+	}
+
+	@Benchmark
+	public int binaryWrite(Value value) throws IOException {
+		value.bytes.reset();
+		value.arith.writeTo(value.dataOut);
+		return value.bytes.size();
+	}
+
+	@Benchmark
+	public Arith binaryRead(Value value) throws IOException {
+		return readBinary(value.binary);
+	}
+
+	@Benchmark
+	public int javaSerializationWrite(Value value) throws IOException {
+		value.bytes.reset();
+		ObjectOutputStream out = new ObjectOutputStream(value.bytes);
+		out.writeObject(value.serialArith);
+		out.flush();
+		return value.bytes.size();
+	}
+
+	@Benchmark
+	public SerialArith javaSerializationRead(Value value) throws IOException, ClassNotFoundException {
+		return readSerialized(value.serialized);
+	}
+
+	/**
+	 * The cases of {@link Arith} as plain serializable classes, for Java
+	 * serialization to be measured on.
+	 */
+	static abstract class SerialArith implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		static final class Num extends SerialArith {
+			private static final long serialVersionUID = 1L;
+
+			final long value;
+
+			Num(long value) {
+				this.value = value;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return (obj instanceof Num) && value == ((Num) obj).value;
+			}
+
+			@Override
+			public int hashCode() {
+				return (int) (value ^ (value >>> 32));
+			}
+		}
+
+		static final class Var extends SerialArith {
+			private static final long serialVersionUID = 1L;
+
+			final String name;
+
+			Var(String name) {
+				this.name = name;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return (obj instanceof Var) && name.equals(((Var) obj).name);
+			}
+
+			@Override
+			public int hashCode() {
+				return name.hashCode();
+			}
+		}
+
+		static final class Neg extends SerialArith {
+			private static final long serialVersionUID = 1L;
+
+			final SerialArith operand;
+
+			Neg(SerialArith operand) {
+				this.operand = operand;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				return (obj instanceof Neg) && operand.equals(((Neg) obj).operand);
+			}
+
+			@Override
+			public int hashCode() {
+				return ~operand.hashCode();
+			}
+		}
+
+		static final class Add extends SerialArith {
+			private static final long serialVersionUID = 1L;
+
+			final SerialArith left;
+			final SerialArith right;
+
+			Add(SerialArith left, SerialArith right) {
+				this.left = left;
+				this.right = right;
+			}
+
+			@Override
+			public boolean equals(Object obj) {
+				if (!(obj instanceof Add)) {
+					return false;
+				}
+				Add other = (Add) obj;
+				return left.equals(other.left) && right.equals(other.right);
+			}
+
+			@Override
+			public int hashCode() {
+				return 31 * left.hashCode() + right.hashCode();
+			}
+		}
+	}
+}
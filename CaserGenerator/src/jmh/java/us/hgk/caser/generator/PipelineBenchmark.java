@@ -0,0 +1,259 @@
+package us.hgk.caser.generator;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
+import com.github.jknack.handlebars.ValueResolver;
+
+import us.hgk.caser.generator.ConfigModels.Handler;
+import us.hgk.caser.generator.ConfigModels.Union;
+
+/**
+ * Measures each stage of generating a union: compiling the template, reading
+ * the spec, fixing it up, resolving it and applying the template, sequentially
+ * and with fragments rendered in parallel. Applying the template is also
+ * measured with Handlebars' default, reflective value resolvers in place of
+ * {@link ModelValueResolver}, for comparison. The specs are synthetic, scaled
+ * by number of cases and of handlers; the smallest is about the size of
+ * {@code Term.yml}.
+ * <p>
+ * Before any spec is measured, the setup checks that rendering it in parallel
+ * or with the reflective resolvers produces exactly the same output as
+ * rendering it sequentially, and fails otherwise.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+	// At least two threads, so that the parallel path is taken even on a
+	// single processor
+	private static final ForkJoinPool RENDER_POOL = new ForkJoinPool(
+			Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * A synthetic spec, in source form, read, fixed up and resolved.
+	 */
+	@State(Scope.Thread)
+	public static class Spec {
+		@Param({ "3", "100", "1000", "3000" })
+		public int caseCount;
+
+		@Param({ "0", "8", "32" })
+		public int handlerCount;
+
+		String yaml;
+
+		// The unfixed handlers, restored before each fixup
+		Handler[] handlers;
+
+		// Read but not fixed up
+		Union union;
+
+		// Read and fixed up, ready to be resolved
+		Union fixedUnion;
+
+		// Resolved, ready for the template
+		ResolvedModels.Union resolvedUnion;
+
+		@Setup
+		public void setup() throws IOException {
+			yaml = synthesizeSpec(caseCount, handlerCount);
+			union = ConfigIO.readUnionFrom(yaml);
+			handlers = union.getHandlers();
+			fixedUnion = ConfigIO.readUnionFrom(yaml);
+			Command.fixupUnionSpec(fixedUnion);
+			resolvedUnion = ResolvedModels.resolve(fixedUnion);
+
+			Template template = Templates.builtin().getTemplate();
+			StringWriter sequential = new StringWriter();
+			Command.applyTemplateToUnionSpec(template, resolvedUnion, sequential, null);
+			StringWriter parallel = new StringWriter();
+			Command.applyTemplateToUnionSpec(template, resolvedUnion, parallel, RENDER_POOL);
+			if (!sequential.toString().equals(parallel.toString())) {
+				throw new IllegalStateException("Parallel rendering differs from sequential rendering for "
+						+ caseCount + " cases and " + handlerCount + " handlers");
+			}
+			StringWriter reflective = new StringWriter();
+			applyTemplateWithReflection(template, resolvedUnion, reflective);
+			if (!sequential.toString().equals(reflective.toString())) {
+				throw new IllegalStateException("Reflective rendering differs from sequential rendering for "
+						+ caseCount + " cases and " + handlerCount + " handlers");
+			}
+		}
+	}
+
+	/**
+	 * The compiled built-in template.
+	 */
+	@State(Scope.Benchmark)
+	public static class CompiledTemplate {
+		Template template;
+
+		@Setup
+		public void setup() {
+			template = Templates.builtin().getTemplate();
+		}
+	}
+
+	@Benchmark
+	public Template compileTemplate() throws IOException {
+		return new Handlebars().compileInline(BuiltinTemplates.source(Templates.CASE_CLASS));
+	}
+
+	@Benchmark
+	public Union readUnionFrom(Spec spec) throws IOException {
+		return ConfigIO.readUnionFrom(new StringReader(spec.yaml));
+	}
+
+	@Benchmark
+	public Union fixupUnionDefaultHandlers(Spec spec) {
+		spec.union.setHandlers(spec.handlers);
+		Command.fixupUnionDefaultHandlers(spec.union);
+		return spec.union;
+	}
+
+	@Benchmark
+	public Union fixupUnionSpec(Spec spec) {
+		spec.union.setHandlers(spec.handlers);
+		Command.fixupUnionSpec(spec.union);
+		return spec.union;
+	}
+
+	@Benchmark
+	public ResolvedModels.Union resolveUnionSpec(Spec spec) {
+		return ResolvedModels.resolve(spec.fixedUnion);
+	}
+
+	@Benchmark
+	public long applyTemplate(Spec spec, CompiledTemplate compiled) {
+		CountingWriter out = new CountingWriter();
+		Command.applyTemplateToUnionSpec(compiled.template, spec.resolvedUnion, out, null);
+		return out.count;
+	}
+
+	@Benchmark
+	public long applyTemplateInParallel(Spec spec, CompiledTemplate compiled) {
+		CountingWriter out = new CountingWriter();
+		Command.applyTemplateToUnionSpec(compiled.template, spec.resolvedUnion, out, RENDER_POOL);
+		return out.count;
+	}
+
+	@Benchmark
+	public long applyTemplateWithReflection(Spec spec, CompiledTemplate compiled) throws IOException {
+		CountingWriter out = new CountingWriter();
+		applyTemplateWithReflection(compiled.template, spec.resolvedUnion, out);
+		return out.count;
+	}
+
+	// Renders sequentially, as Command.applyTemplateToUnionSpec does with no
+	// pool, but resolving expressions by reflection
+	static void applyTemplateWithReflection(Template template, ResolvedModels.Union unionSpec, Writer out)
+			throws IOException {
+		Context context = Context.newBuilder(unionSpec).resolver(ValueResolver.VALUE_RESOLVERS).build();
+		try {
+			template.apply(context, out);
+		} finally {
+			context.destroy();
+		}
+	}
+
+	// Discards what is written, keeping only its length
+	private static final class CountingWriter extends Writer {
+		long count;
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void write(String str, int off, int len) {
+			count += len;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// Cases cycle through having no parameters, a string and an int, and a
+	// value of the union itself and a long; handlers cycle through return
+	// types, and every fourth one declares a checked exception
+	static String synthesizeSpec(int caseCount, int handlerCount) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("packageName: org.example.bench\n");
+		sb.append("name: Synthetic\n");
+		sb.append("doc: A synthetic union\n");
+		sb.append("modifiers: public\n");
+
+		sb.append("cases:\n");
+		for (int i = 0; i < caseCount; ++i) {
+			sb.append("  - name: Case").append(i).append('\n');
+			sb.append("    doc: Case number ").append(i).append('\n');
+			switch (i % 3) {
+			case 1:
+				sb.append("    parameters:\n");
+				appendParameter(sb, "text", "String");
+				appendParameter(sb, "count", "int");
+				break;
+			case 2:
+				sb.append("    parameters:\n");
+				appendParameter(sb, "next", "Synthetic");
+				appendParameter(sb, "id", "long");
+				break;
+			default:
+				break;
+			}
+		}
+
+		if (handlerCount > 0) {
+			String[] returnTypes = { null, "int", "<R>", "String", "boolean" };
+			sb.append("handlers:\n");
+			for (int i = 0; i < handlerCount; ++i) {
+				sb.append("  - name: Handler").append(i).append('\n');
+				sb.append("    doc: Handler number ").append(i).append('\n');
+				String returns = returnTypes[i % returnTypes.length];
+				if (returns != null) {
+					sb.append("    returns: \"").append(returns).append("\"\n");
+				}
+				if (i % 4 == 3) {
+					sb.append("    throws: [java.io.IOException]\n");
+				}
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static void appendParameter(StringBuilder sb, String name, String type) {
+		sb.append("      - name: ").append(name).append('\n');
+		sb.append("        type: ").append(type).append('\n');
+		sb.append("        doc: The ").append(name).append('\n');
+	}
+}
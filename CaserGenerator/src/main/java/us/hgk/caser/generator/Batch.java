@@ -0,0 +1,555 @@
+package us.hgk.caser.generator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jknack.handlebars.Context;
+
+import us.hgk.caser.generator.ConfigModels.Target;
+import us.hgk.caser.generator.ResolvedModels.Case;
+import us.hgk.caser.generator.ResolvedModels.Handler;
+import us.hgk.caser.generator.ResolvedModels.Union;
+
+/**
+ * Generates many union specs in one run, sharing a single compiled template
+ * and rendering the specs in parallel on a bounded pool of workers.
+ */
+final class Batch {
+	private static final Logger log = LoggerFactory.getLogger(Batch.class);
+
+	private final Templates.Loaded template;
+	private final Templates.Loaded benchmarkTemplate;
+	private final Target target;
+	// Everything about the templates that affects the output, for the manifest
+	private final String templateSource;
+	private final Path outputRoot;
+	private final int threads;
+	private final Manifest manifest;
+	private final Metrics metrics;
+
+	/**
+	 * @param template
+	 *            The compiled template, shared by all workers
+	 * @param benchmarkTemplate
+	 *            If not {@code null}, the template for a JMH benchmark class,
+	 *            which is generated into {@code <name>Benchmark.java} next to
+	 *            each union
+	 * @param target
+	 *            If not {@code null}, the target for which every union is
+	 *            generated, whatever its spec says; a built-in template is
+	 *            replaced by the one for the target of each union
+	 * @param outputRoot
+	 *            The directory under which {@code <packageName>/<name>.java}
+	 *            files are written
+	 * @param threads
+	 *            The maximum number of worker threads; if less than 1, the
+	 *            number of available processors is used
+	 * @param incremental
+	 *            If {@code true}, specs whose inputs are unchanged since they
+	 *            were last generated, according to the manifest in the output
+	 *            root, are skipped
+	 * @param metrics
+	 *            If not {@code null}, where the time, allocation and sizes of
+	 *            each phase of each spec are recorded
+	 */
+	Batch(Templates.Loaded template, Templates.Loaded benchmarkTemplate, Target target, Path outputRoot,
+			int threads, boolean incremental, Metrics metrics) {
+		this.template = template;
+		this.benchmarkTemplate = benchmarkTemplate;
+		this.target = target;
+		// A built-in template stands for all of them, any of which a spec may
+		// select by its target
+		String source = ((template.getTarget() == null) ? template.getSource()
+				: BuiltinTemplates.source(Templates.CASE_CLASS) + '\0' + BuiltinTemplates.source(Templates.CASE_RECORD))
+				+ '\0' + BuiltinTemplates.source(Templates.HANDLER_BASE) + '\0'
+				+ BuiltinTemplates.source(Templates.CASE_BASE) + '\0' + ((target == null) ? "" : target.getLabel());
+		this.templateSource = (benchmarkTemplate == null) ? source : source + '\0' + benchmarkTemplate.getSource();
+		this.outputRoot = outputRoot;
+		this.threads = (threads < 1) ? Runtime.getRuntime().availableProcessors() : threads;
+		this.manifest = incremental ? Manifest.load(outputRoot) : null;
+		this.metrics = metrics;
+	}
+
+	// A copy sharing everything but the metrics, including the manifest
+	private Batch(Batch batch, Metrics metrics) {
+		this.template = batch.template;
+		this.benchmarkTemplate = batch.benchmarkTemplate;
+		this.target = batch.target;
+		this.templateSource = batch.templateSource;
+		this.outputRoot = batch.outputRoot;
+		this.threads = batch.threads;
+		this.manifest = batch.manifest;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Returns a batch that generates specs exactly as this one does, and
+	 * shares its manifest, but records no metrics.
+	 */
+	Batch withoutMetrics() {
+		return (metrics == null) ? this : new Batch(this, null);
+	}
+
+	/**
+	 * What became of a spec.
+	 */
+	enum Status {
+		/** The output was generated and written */
+		GENERATED,
+		/** The output was generated but matched the existing file, which was left alone */
+		UNCHANGED,
+		/** The spec's inputs were unchanged since the last run, so it was not parsed at all */
+		SKIPPED,
+		/** An error occurred */
+		FAILED
+	}
+
+	/**
+	 * The result of generating one spec.
+	 */
+	static final class Outcome {
+		private final Path specPath;
+		private final Path outputPath;
+		private final Status status;
+		private final Throwable error;
+		private final long elapsedNanos;
+
+		// The elapsed time is measured from startNanos until the outcome is created
+		private Outcome(Path specPath, Path outputPath, Status status, Throwable error, long startNanos) {
+			this.specPath = specPath;
+			this.outputPath = outputPath;
+			this.status = status;
+			this.error = error;
+			this.elapsedNanos = System.nanoTime() - startNanos;
+		}
+
+		Path getSpecPath() {
+			return specPath;
+		}
+
+		Path getOutputPath() {
+			return outputPath;
+		}
+
+		Status getStatus() {
+			return status;
+		}
+
+		Throwable getError() {
+			return error;
+		}
+
+		boolean isSuccess() {
+			return status != Status.FAILED;
+		}
+
+		/**
+		 * Returns the time spent on this spec, in nanoseconds.
+		 */
+		long getElapsedNanos() {
+			return elapsedNanos;
+		}
+	}
+
+	/**
+	 * Expands the given paths into a sorted list of spec files. Files are
+	 * included as given; directories are searched recursively for
+	 * {@code *.yml} and {@code *.yaml} files. Anything deleted while a
+	 * directory is being searched, such as an editor's temporary directory,
+	 * is skipped.
+	 */
+	static List<Path> findSpecs(List<Path> paths) throws IOException {
+		final ArrayList<Path> specs = new ArrayList<>();
+
+		for (Path path : paths) {
+			if (Files.isDirectory(path)) {
+				Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (attrs.isRegularFile() && isSpecFileName(file)) {
+							specs.add(file);
+						}
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+						if (exc instanceof NoSuchFileException) {
+							log.debug("Skipping " + file + ", which was deleted while searching for specs");
+							return FileVisitResult.CONTINUE;
+						}
+						throw exc;
+					}
+				});
+			} else {
+				specs.add(path);
+			}
+		}
+
+		Collections.sort(specs);
+		return specs;
+	}
+
+	/**
+	 * Returns whether the given file has a name that would be picked up as a
+	 * spec when searching a directory.
+	 */
+	static boolean isSpecFileName(Path file) {
+		String fileName = file.getFileName().toString();
+		return fileName.endsWith(".yml") || fileName.endsWith(".yaml");
+	}
+
+	/**
+	 * Generates each of the given specs, returning the outcomes in the same
+	 * order as the specs.
+	 */
+	List<Outcome> run(List<Path> specs) {
+		int poolSize = Math.max(1, Math.min(threads, specs.size()));
+		log.info("Generating " + specs.size() + " union spec(s) using " + poolSize + " worker(s)");
+
+		if (poolSize == 1) {
+			// Not worth starting a pool for; this is the usual case when
+			// watching for changes
+			ArrayList<Outcome> outcomes = new ArrayList<>(specs.size());
+			for (Path spec : specs) {
+				outcomes.add(generate(spec));
+			}
+			saveManifest();
+			return outcomes;
+		}
+
+		ArrayList<Callable<Outcome>> tasks = new ArrayList<>(specs.size());
+		for (final Path spec : specs) {
+			tasks.add(new Callable<Outcome>() {
+				@Override
+				public Outcome call() {
+					return generate(spec);
+				}
+			});
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		try {
+			List<Future<Outcome>> futures = pool.invokeAll(tasks);
+			ArrayList<Outcome> outcomes = new ArrayList<>(futures.size());
+			for (Future<Outcome> future : futures) {
+				outcomes.add(future.get());
+			}
+			saveManifest();
+			return outcomes;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while generating union specs", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Unexpected error generating union specs: " + e.getCause().getMessage(),
+					e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Outcome generate(Path spec) {
+		return generate(spec, (metrics == null) ? Metrics.Spec.DISABLED : metrics.newSpec(spec.toString()));
+	}
+
+	private Outcome generate(Path spec, Metrics.Spec specMetrics) {
+		long start = System.nanoTime();
+		Path output = null;
+		try {
+			// The whole spec is only needed in memory to compute its hash, or
+			// to time reading it separately from parsing it
+			byte[] specBytes = null;
+			String hash = null;
+			if (manifest != null || specMetrics != Metrics.Spec.DISABLED) {
+				long[] mark = specMetrics.mark();
+				specBytes = Files.readAllBytes(spec);
+				specMetrics.record(Metrics.READ, mark);
+				specMetrics.setInputBytes(specBytes.length);
+			}
+			if (manifest != null) {
+				hash = Manifest.hash(Manifest.generatorFingerprint(), templateSource, specBytes);
+				Manifest.Entry previous = manifest.get(spec);
+				if (previous != null && previous.getHash().equals(hash) && previous.outputsExist()) {
+					log.debug("Skipping unchanged union spec " + spec);
+					specMetrics.setStatus(Status.SKIPPED.name());
+					return new Outcome(spec, previous.getOutputPath(), Status.SKIPPED, null, start);
+				}
+			}
+
+			log.debug("Parsing and mapping union spec " + spec);
+			long[] mark = specMetrics.mark();
+			InputStream specStream = (specBytes != null) ? new ByteArrayInputStream(specBytes)
+					: Files.newInputStream(spec);
+			ConfigModels.Union mapped = Command.parseAndMapUnionSpec(Command.openUnionSpec(specStream));
+			specMetrics.record(Metrics.PARSE, mark);
+
+			mark = specMetrics.mark();
+			Command.overrideTarget(mapped, target);
+			Command.fixupUnionSpec(mapped);
+			specMetrics.record(Metrics.FIXUP, mark);
+
+			mark = specMetrics.mark();
+			Union unionSpec = ResolvedModels.resolve(mapped);
+			specMetrics.record(Metrics.RESOLVE, mark);
+			specMetrics.setCounts(unionSpec);
+
+			output = outputPathFor(unionSpec);
+			// Every file written for the spec, for the manifest
+			ArrayList<Path> outputs = new ArrayList<>();
+			outputs.add(output);
+
+			log.debug("Applying template to union spec " + spec);
+			mark = specMetrics.mark();
+			OutputBuffer rendered = render(Templates.forTarget(template, unionSpec.getTarget()), unionSpec);
+			specMetrics.record(Metrics.APPLY, mark);
+			if (Fragments.poolFor(unionSpec) != null) {
+				specMetrics.setAllocationUnknown(Metrics.APPLY);
+			}
+			long outputBytes = rendered.size();
+
+			mark = specMetrics.mark();
+			boolean written = writeIfChanged(output, rendered);
+			specMetrics.record(Metrics.WRITE, mark);
+
+			if (benchmarkTemplate != null) {
+				Path benchmarkOutput = output.resolveSibling(unionSpec.getName() + "Benchmark.java");
+				outputs.add(benchmarkOutput);
+
+				mark = specMetrics.mark();
+				rendered = render(benchmarkTemplate, unionSpec);
+				specMetrics.record(Metrics.APPLY, mark);
+				outputBytes += rendered.size();
+
+				mark = specMetrics.mark();
+				written |= writeIfChanged(benchmarkOutput, rendered);
+				specMetrics.record(Metrics.WRITE, mark);
+			}
+
+			HashSet<String> splitFileNames = new HashSet<>();
+			if (unionSpec.getSplitOutput()) {
+				Context unionContext = ModelValueResolver.newContext(unionSpec);
+				for (Handler handler : unionSpec.getHandlers()) {
+					String fileName = unionSpec.getName() + handler.getName() + "Base.java";
+					splitFileNames.add(fileName);
+
+					mark = specMetrics.mark();
+					rendered = render(Templates.handlerBase(), Context.newContext(unionContext, handler));
+					specMetrics.record(Metrics.APPLY, mark);
+					outputBytes += rendered.size();
+
+					mark = specMetrics.mark();
+					written |= writeIfChanged(output.resolveSibling(fileName), rendered);
+					specMetrics.record(Metrics.WRITE, mark);
+					outputs.add(output.resolveSibling(fileName));
+				}
+
+				for (Case c : unionSpec.getCases()) {
+					String fileName = unionSpec.getName() + c.getName() + "Base.java";
+					splitFileNames.add(fileName);
+
+					mark = specMetrics.mark();
+					rendered = render(Templates.caseBase(), Context.newContext(unionContext, c));
+					specMetrics.record(Metrics.APPLY, mark);
+					outputBytes += rendered.size();
+
+					mark = specMetrics.mark();
+					written |= writeIfChanged(output.resolveSibling(fileName), rendered);
+					specMetrics.record(Metrics.WRITE, mark);
+					outputs.add(output.resolveSibling(fileName));
+				}
+			}
+			mark = specMetrics.mark();
+			written |= removeStaleSplitOutput(output.getParent(), unionSpec.getName(), splitFileNames);
+			specMetrics.record(Metrics.WRITE, mark);
+			specMetrics.setOutputBytes(outputBytes);
+
+			if (manifest != null) {
+				manifest.put(spec, new Manifest.Entry(hash, outputs));
+			}
+
+			Status status = written ? Status.GENERATED : Status.UNCHANGED;
+			specMetrics.setStatus(status.name());
+			return new Outcome(spec, output, status, null, start);
+		} catch (IOException | RuntimeException e) {
+			if (manifest != null) {
+				manifest.remove(spec);
+			}
+			specMetrics.setStatus(Status.FAILED.name());
+			return new Outcome(spec, output, Status.FAILED, e, start);
+		}
+	}
+
+	private static OutputBuffer render(Templates.Loaded template, Union unionSpec) throws IOException {
+		OutputBuffer result = new OutputBuffer();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(result, Charset.defaultCharset()));
+		Command.applyTemplateToUnionSpec(template.getTemplate(), unionSpec, writer);
+		writer.flush();
+		return result;
+	}
+
+	private static OutputBuffer render(Templates.Loaded template, Context context) throws IOException {
+		OutputBuffer result = new OutputBuffer();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(result, Charset.defaultCharset()));
+		template.getTemplate().apply(context, writer);
+		writer.flush();
+		return result;
+	}
+
+	// Deletes the bases left in the directory by an earlier run of split
+	// output for the named union, other than those just written. A case or
+	// handler that has since been removed, or a union that is no longer
+	// split, would otherwise leave behind a file that no longer compiles. Only
+	// files starting with the line that the split templates write are
+	// touched.
+	private static boolean removeStaleSplitOutput(Path dir, String unionName, Set<String> current)
+			throws IOException {
+		if (!Files.isDirectory(dir)) {
+			return false;
+		}
+
+		String marker = "// Split from " + unionName + ".java; do not edit.";
+		boolean removed = false;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, unionName + "*Base.java")) {
+			for (Path file : files) {
+				if (!current.contains(file.getFileName().toString()) && startsWithLine(file, marker)) {
+					log.debug("Removing stale split output " + file);
+					Files.delete(file);
+					removed = true;
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static boolean startsWithLine(Path file, String line) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(file, Charset.defaultCharset())) {
+			return line.equals(reader.readLine());
+		}
+	}
+
+	// Leaves the file (and its timestamp) alone if it already has the given
+	// content, so that downstream builds do not see a change
+	private static boolean writeIfChanged(Path output, OutputBuffer content) throws IOException {
+		if (Files.isRegularFile(output) && content.contentEquals(output)) {
+			return false;
+		}
+
+		Files.createDirectories(output.getParent());
+		try (OutputStream out = Files.newOutputStream(output)) {
+			content.writeTo(out);
+		}
+		return true;
+	}
+
+	// A ByteArrayOutputStream whose content can be compared to a file
+	// without first being copied out
+	private static final class OutputBuffer extends ByteArrayOutputStream {
+		OutputBuffer() {
+			super(8192);
+		}
+
+		boolean contentEquals(Path file) throws IOException {
+			if (Files.size(file) != count) {
+				return false;
+			}
+
+			try (InputStream in = Files.newInputStream(file)) {
+				byte[] chunk = new byte[8192];
+				int position = 0;
+				int n;
+				while ((n = in.read(chunk)) >= 0) {
+					if (position + n > count) {
+						return false;
+					}
+					for (int i = 0; i < n; ++i) {
+						if (chunk[i] != buf[position + i]) {
+							return false;
+						}
+					}
+					position += n;
+				}
+				return position == count;
+			}
+		}
+	}
+
+	private void saveManifest() {
+		if (manifest != null) {
+			try {
+				manifest.save();
+			} catch (IOException e) {
+				throw new RuntimeException("I/O error saving manifest: " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private Path outputPathFor(Union unionSpec) {
+		Path dir = outputRoot;
+		String packageName = unionSpec.getPackageName();
+		if (packageName != null && !packageName.isEmpty()) {
+			for (String part : packageName.split("\\.")) {
+				dir = dir.resolve(part);
+			}
+		}
+		return dir.resolve(unionSpec.getName() + ".java");
+	}
+
+	/**
+	 * Logs a line per spec and a final tally.
+	 *
+	 * @return The number of specs that failed
+	 */
+	static int logSummary(List<Outcome> outcomes) {
+		EnumMap<Status, Integer> counts = new EnumMap<>(Status.class);
+		for (Status status : Status.values()) {
+			counts.put(status, 0);
+		}
+
+		for (Outcome outcome : outcomes) {
+			Status status = outcome.getStatus();
+			counts.put(status, counts.get(status) + 1);
+
+			String label = String.format("%-9s ", status);
+			if (outcome.isSuccess()) {
+				log.info(label + outcome.getSpecPath() + " -> " + outcome.getOutputPath()
+						+ String.format(" (%.3f ms)", outcome.getElapsedNanos() / 1e6));
+			} else {
+				log.error(label + outcome.getSpecPath() + ": " + outcome.getError().getMessage());
+				log.debug("Failure detail for " + outcome.getSpecPath(), outcome.getError());
+			}
+		}
+
+		log.info(counts.get(Status.GENERATED) + " generated, " + counts.get(Status.UNCHANGED) + " unchanged, "
+				+ counts.get(Status.SKIPPED) + " skipped, " + counts.get(Status.FAILED) + " failed");
+		return counts.get(Status.FAILED);
+	}
+}
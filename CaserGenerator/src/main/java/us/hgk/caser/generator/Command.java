@@ -1,83 +1,225 @@
 package us.hgk.caser.generator;
 
+import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
-import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Context;
 import com.github.jknack.handlebars.Template;
 
+import us.hgk.caser.generator.ConfigModels.Case;
 import us.hgk.caser.generator.ConfigModels.Handler;
+import us.hgk.caser.generator.ConfigModels.Parameter;
+import us.hgk.caser.generator.ConfigModels.Target;
 import us.hgk.caser.generator.ConfigModels.Union;
 
 public final class Command {
 	private static final Logger log = LoggerFactory.getLogger(Command.class);
 
-	private static final Charset UTF8 = Charset.forName("utf-8");
-
 	public static void main(String[] args) {
-		log.info("Loading template from resource");
-		String templateSource = readTemplateResource();
-		log.info("Compiling template");
-		Template template = compileTemplate(templateSource);
+		CommandLine commandLine;
+		try {
+			commandLine = CommandLine.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.print(CommandLine.USAGE);
+			System.exit(2);
+			return;
+		}
+
+		Metrics metrics = (commandLine.getMetricsPath() == null) ? null : new Metrics();
+
+		long[] mark = Metrics.mark();
+		Templates.Loaded template = Templates.load(commandLine.getTemplatePath(), commandLine.getTarget());
+		if (metrics != null) {
+			metrics.record(Metrics.TEMPLATE, mark);
+		}
 		log.info("Template OK");
 
+		if (commandLine.isBatch()) {
+			System.exit(runBatch(template, commandLine, metrics));
+		} else {
+			runSingle(template, commandLine.getTarget(), metrics);
+			if (metrics != null) {
+				writeMetrics(metrics, commandLine.getMetricsPath());
+			}
+		}
+	}
+
+	/**
+	 * Returns the version of this generator, as recorded in the manifest of
+	 * its jar, or {@code "development"} when not running from a jar.
+	 */
+	static String getGeneratorVersion() {
+		String version = Command.class.getPackage().getImplementationVersion();
+		return (version == null) ? "development" : version;
+	}
+
+	private static int runBatch(Templates.Loaded template, CommandLine commandLine, Metrics metrics) {
+		List<Path> specs;
+		try {
+			specs = Batch.findSpecs(commandLine.getSpecPaths());
+		} catch (IOException e) {
+			throw new RuntimeException("I/O error finding union specs: " + e.getMessage(), e);
+		}
+
+		Templates.Loaded benchmarkTemplate = null;
+		if (commandLine.isBenchmarks()) {
+			long[] mark = Metrics.mark();
+			benchmarkTemplate = Templates.benchmark();
+			if (metrics != null) {
+				metrics.record(Metrics.TEMPLATE, mark);
+			}
+		}
+
+		Batch batch = new Batch(template, benchmarkTemplate, commandLine.getTarget(), commandLine.getOutputRoot(),
+				commandLine.getThreads(), commandLine.isIncremental(), metrics);
+		List<Batch.Outcome> outcomes = batch.run(specs);
+		int failures = Batch.logSummary(outcomes);
+
+		// Only the initial run is reported when watching
+		if (metrics != null) {
+			writeMetrics(metrics, commandLine.getMetricsPath());
+		}
+
+		if (commandLine.isWatch()) {
+			try {
+				// Nothing after the initial run is reported, so nothing is
+				// recorded either; otherwise every regeneration would add to
+				// the metrics for as long as the watch lasts
+				new Watch(batch.withoutMetrics(), commandLine.getSpecPaths()).run();
+			} catch (IOException e) {
+				throw new RuntimeException("I/O error watching union specs: " + e.getMessage(), e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.info("Interrupted; no longer watching");
+			}
+		}
+
+		log.info("Done");
+		return (failures == 0) ? 0 : 1;
+	}
+
+	private static void runSingle(Templates.Loaded template, Target target, Metrics metrics) {
+		Metrics.Spec specMetrics = (metrics == null) ? Metrics.Spec.DISABLED : metrics.newSpec("-");
+
 		log.info("Accepting union spec on stdin...");
-		String unionSpecYaml = readUnionSpec(System.in);
 		log.info("Parsing and mapping union spec");
-		Union unionSpec = parseAndMapUnionSpec(unionSpecYaml);
+		long[] mark = specMetrics.mark();
+		Metrics.CountingInputStream in = new Metrics.CountingInputStream(System.in);
+		Union unionSpec = parseAndMapUnionSpec(openUnionSpec(in));
+		specMetrics.record(Metrics.PARSE, mark);
+		specMetrics.setInputBytes(in.getCount());
 		log.info("Union spec parsed and mapped OK");
 
-		log.info("Fixing up union spec default handlers...");
-		fixupUnionDefaultHandlers(unionSpec);
+		log.info("Fixing up union spec...");
+		mark = specMetrics.mark();
+		overrideTarget(unionSpec, target);
+		fixupUnionSpec(unionSpec);
+		specMetrics.record(Metrics.FIXUP, mark);
+
+		log.info("Resolving union spec...");
+		mark = specMetrics.mark();
+		ResolvedModels.Union resolved = ResolvedModels.resolve(unionSpec);
+		specMetrics.record(Metrics.RESOLVE, mark);
+		specMetrics.setCounts(resolved);
+
+		if (resolved.getSplitOutput()) {
+			throw new RuntimeException("Union spec asks for split output, which needs an output root (-o)");
+		}
 
 		log.info("Applying template to union spec");
-		String result = applyTemplateToUnionSpec(template, unionSpec);
+		mark = specMetrics.mark();
+		Metrics.CountingOutputStream counted = new Metrics.CountingOutputStream(System.out);
+		Writer out = new BufferedWriter(new OutputStreamWriter(counted));
+		applyTemplateToUnionSpec(Templates.forTarget(template, resolved.getTarget()).getTemplate(), resolved, out);
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new RuntimeException("I/O error writing result: " + e.getMessage(), e);
+		}
+		specMetrics.record(Metrics.APPLY, mark);
+		if (Fragments.poolFor(resolved) != null) {
+			specMetrics.setAllocationUnknown(Metrics.APPLY);
+		}
+		specMetrics.setOutputBytes(counted.getCount());
+		specMetrics.setStatus("GENERATED");
 		log.info("Applied template OK");
 
-		System.out.print(result);
-
 		log.info("Done");
 	}
 
-	private static String applyTemplateToUnionSpec(Template template, Union unionSpec) {
-		String result = null;
-
+	private static void writeMetrics(Metrics metrics, Path path) {
 		try {
-			result = template.apply(unionSpec);
+			metrics.writeTo(path);
 		} catch (IOException e) {
-			throw new RuntimeException("I/O error applying template to union spec: " + e.getMessage(), e);
+			throw new RuntimeException("I/O error writing metrics: " + e.getMessage(), e);
+		}
+		if (!"-".equals(path.toString())) {
+			log.info("Metrics written to " + path);
 		}
-		return result;
 	}
 
-	private static void closeLoggingOnError(Closeable toClose, String what) {
+	/**
+	 * Renders the template against the given resolved union spec, streaming
+	 * the result to the given writer. The writer is not flushed or closed. A
+	 * union large enough to benefit has its fragments rendered in parallel.
+	 */
+	static void applyTemplateToUnionSpec(Template template, ResolvedModels.Union unionSpec, Writer out) {
+		applyTemplateToUnionSpec(template, unionSpec, out, Fragments.poolFor(unionSpec));
+	}
+
+	/**
+	 * Renders the template against the given resolved union spec as
+	 * {@link #applyTemplateToUnionSpec(Template, ResolvedModels.Union, Writer)}
+	 * does, but rendering fragments on the given pool, or sequentially if it
+	 * is {@code null}. The output is the same either way.
+	 */
+	static void applyTemplateToUnionSpec(Template template, ResolvedModels.Union unionSpec, Writer out,
+			ForkJoinPool pool) {
+		Context context = ModelValueResolver.newContext(unionSpec);
+		if (pool != null) {
+			context.data(Fragments.POOL, pool);
+		}
 		try {
-			toClose.close();
+			template.apply(context, out);
 		} catch (IOException e) {
-			log.error("Error occurred closing " + what + ": " + e.getMessage(), e);
+			throw new RuntimeException("I/O error applying template to union spec: " + e.getMessage(), e);
+		} finally {
+			context.destroy();
 		}
 	}
 
-	private static Template compileTemplate(String templateSource) {
-		Handlebars handlebars = new Handlebars();
-
+	private static void closeLoggingOnError(Closeable toClose, String what) {
 		try {
-			return handlebars.compileInline(templateSource);
+			toClose.close();
 		} catch (IOException e) {
-			throw new RuntimeException("Failed to parse template: " + e.getMessage(), e);
+			log.error("Error occurred closing " + what + ": " + e.getMessage(), e);
 		}
 	}
 
-	private static Union parseAndMapUnionSpec(String unionSpecYaml) {
+	/**
+	 * Parses and maps a union spec from the given reader, which is closed
+	 * afterward.
+	 */
+	static Union parseAndMapUnionSpec(Reader unionSpecYaml) {
 		Union unionSpec = null;
 
 		try {
@@ -88,11 +230,39 @@ public final class Command {
 			throw new RuntimeException("Could not map YAML structure to expected format: " + e.getMessage(), e);
 		} catch (IOException e) {
 			throw new RuntimeException("I/O error parsing union spec:" + e.getMessage(), e);
+		} finally {
+			closeLoggingOnError(unionSpecYaml, "union spec");
 		}
 		return unionSpec;
 	}
 
-	private static void fixupUnionDefaultHandlers(Union unionSpec) {
+	/**
+	 * Fills in the parts of a freshly parsed union spec that are implied
+	 * rather than stated, and checks that its options are compatible.
+	 */
+	static void fixupUnionSpec(Union unionSpec) {
+		fixupUnionDefaultHandlers(unionSpec);
+		fixupCaseInterning(unionSpec);
+		fixupRecursiveParameters(unionSpec);
+		fixupSampleExpressions(unionSpec);
+		checkBinarySerialization(unionSpec);
+		checkSplitOutput(unionSpec);
+		checkTarget(unionSpec);
+		checkParameterNames(unionSpec);
+	}
+
+	/**
+	 * Makes a freshly parsed union spec generate for the given target, which
+	 * was chosen on the command line, whatever the spec itself says. Does
+	 * nothing if the target is {@code null}.
+	 */
+	static void overrideTarget(Union unionSpec, Target target) {
+		if (target != null) {
+			unionSpec.setTarget(target.getLabel());
+		}
+	}
+
+	static void fixupUnionDefaultHandlers(Union unionSpec) {
 		if (unionSpec.getExcludeDefaultHandlers()) {
 			// Default handlers Actions and Functions<T> are excluded; they
 			// would have been anyway.
@@ -101,75 +271,258 @@ public final class Command {
 			if (explicitHandlers == null)
 				explicitHandlers = new Handler[0];
 
-			boolean includeActions = true, includeFunctions = true;
-
+			HashSet<String> explicitNames = new HashSet<>();
 			for (Handler h : explicitHandlers) {
-				if ("Actions".equals(h.getName())) {
-					includeActions = false;
-					log.debug(
-							"Excluding default Actions handler because a handler with the name Actions is explicitly defined");
-				}
-				if ("Functions".equals(h.getName())) {
-					includeFunctions = false;
-					log.debug(
-							"Excluding default Functions<T> handler because a handler with the name Functions is explicitly defined");
-				}
-				if (!(includeActions || includeFunctions)) {
-					break;
+				explicitNames.add(h.getName());
+			}
+
+			ArrayList<Handler> handlers = new ArrayList<>();
+
+			for (Handler h : createDefaultHandlers(unionSpec)) {
+				if (explicitNames.contains(h.getName())) {
+					log.debug("Excluding default " + h.getName() + " handler because a handler with the name "
+							+ h.getName() + " is explicitly defined");
+				} else {
+					handlers.add(h);
 				}
 			}
 
-			if (includeActions || includeFunctions) {
-				ArrayList<Handler> handlers = new ArrayList<>();
+			if (!handlers.isEmpty()) {
+				handlers.addAll(Arrays.asList(explicitHandlers));
+				unionSpec.setHandlers(handlers.toArray(new Handler[0]));
+			}
+		}
+	}
+
+	private static List<Handler> createDefaultHandlers(Union unionSpec) {
+		ArrayList<Handler> handlers = new ArrayList<>();
+
+		handlers.add(createDefaultHandler("Actions", "A basic handler whose cases do not return any value", null));
+		handlers.add(createDefaultHandler("Functions", "A basic handler whose cases return an object", "<T>"));
+
+		if (unionSpec.getPrimitiveDefaultHandlers()) {
+			// Specialized so that numeric folds need not box their results
+			handlers.add(createDefaultHandler("IntFunctions", "A basic handler whose cases return an int", "int"));
+			handlers.add(createDefaultHandler("LongFunctions", "A basic handler whose cases return a long", "long"));
+			handlers.add(
+					createDefaultHandler("DoubleFunctions", "A basic handler whose cases return a double", "double"));
+			handlers.add(createDefaultHandler("BooleanFunctions", "A basic handler whose cases return a boolean",
+					"boolean"));
+		}
+
+		return handlers;
+	}
+
+	private static Handler createDefaultHandler(String name, String doc, String returns) {
+		Handler handler = new Handler();
+		handler.setName(name);
+		handler.setDoc(doc);
+		if (returns != null) {
+			handler.setReturns(returns);
+		}
+		return handler;
+	}
+
+	// Resolves each case's intern flag, which defaults to the union's
+	static void fixupCaseInterning(Union unionSpec) {
+		Case[] cases = unionSpec.getCases();
+		if (cases == null) {
+			return;
+		}
 
-				if (includeActions) {
-					Handler actions = new Handler();
-					actions.setName("Actions");
-					actions.setDoc("A basic handler whose cases do not return any value");
-					handlers.add(actions);
+		for (Case c : cases) {
+			if (c.getIntern() == null) {
+				c.setIntern(unionSpec.getIntern());
+			}
+			if (c.getIntern() && unionSpec.getIdentityEquality()) {
+				throw new RuntimeException("Case " + c.getName()
+						+ " cannot be interned because the union uses identity equality; interning requires structural equality");
+			}
+		}
+	}
+
+	// Marks the parameters whose type is the union itself, by simple or
+	// qualified name
+	static void fixupRecursiveParameters(Union unionSpec) {
+		Case[] cases = unionSpec.getCases();
+		if (cases == null || unionSpec.getName() == null) {
+			return;
+		}
+
+		String simpleName = unionSpec.getName();
+		String packageName = unionSpec.getPackageName();
+		String qualifiedName = (packageName == null || packageName.isEmpty()) ? simpleName
+				: packageName + "." + simpleName;
+
+		for (Case c : cases) {
+			if (c.getParameters() == null) {
+				continue;
+			}
+			int recursiveCount = 0;
+			for (Parameter p : c.getParameters()) {
+				String type = (p.getType() == null) ? null : p.getType().trim();
+				boolean recursive = simpleName.equals(type) || qualifiedName.equals(type);
+				p.setRecursive(recursive);
+				p.setRecursiveIndex(recursive ? recursiveCount++ : -1);
+			}
+		}
+	}
+
+	// Gives each parameter an expression for an arbitrary value, for use in
+	// generated benchmarks. A parameter of the union's own type gets a value
+	// of the first case that needs no such value itself, if there is one.
+	static void fixupSampleExpressions(Union unionSpec) {
+		Case[] cases = unionSpec.getCases();
+		if (cases == null) {
+			return;
+		}
+
+		for (Case c : cases) {
+			if (c.getParameters() == null) {
+				continue;
+			}
+			for (Parameter p : c.getParameters()) {
+				if (!p.getRecursive() && p.getType() != null) {
+					String sample = Parameter.sampleExpressionFor(p.getType(), p.getName());
+					p.setSampleExpression((sample == null) ? "null" : sample);
 				}
+			}
+		}
 
-				if (includeFunctions) {
-					Handler functions = new Handler();
-					functions.setName("Functions");
-					functions.setDoc("A basic handler whose cases return an object");
-					functions.setReturns("<T>");					
-					handlers.add(functions);
+		String leafExpression = "null";
+		for (Case c : cases) {
+			if (!c.getRecursive()) {
+				StringBuilder sb = new StringBuilder();
+				sb.append(unionSpec.getName()).append(".Cases.").append(c.getName()).append(".of(");
+				if (c.getParameters() != null) {
+					for (int i = 0; i < c.getParameters().length; ++i) {
+						sb.append((i == 0) ? "" : ", ").append(c.getParameters()[i].getSampleExpression());
+					}
 				}
+				leafExpression = sb.append(")").toString();
+				break;
+			}
+		}
 
-				handlers.addAll(Arrays.asList(explicitHandlers));
-				unionSpec.setHandlers(handlers.toArray(new Handler[0]));
+		for (Case c : cases) {
+			if (c.getParameters() == null) {
+				continue;
+			}
+			for (Parameter p : c.getParameters()) {
+				if (p.getRecursive()) {
+					p.setSampleExpression(leafExpression);
+				}
 			}
 		}
 	}
 
-	private static String readTemplateResource() {
-		String templateSource;
-		InputStream templateStream = Command.class.getResourceAsStream("/templates/case-class.java.handlebars");
+	// Binary serialization covers only a fixed set of parameter types and
+	// encodes the tag in one byte, with one value reserved for null
+	static void checkBinarySerialization(Union unionSpec) {
+		Case[] cases = unionSpec.getCases();
+		if (!unionSpec.getBinarySerialization() || cases == null) {
+			return;
+		}
+
+		if (cases.length > 255) {
+			throw new RuntimeException(
+					"Binary serialization supports at most 255 cases, but the union has " + cases.length);
+		}
 
-		if (templateStream == null) {
-			throw new RuntimeException("Template resource not available");
+		for (Case c : cases) {
+			if (c.getParameters() == null) {
+				continue;
+			}
+			for (Parameter p : c.getParameters()) {
+				if (!p.getRecursive() && p.getBinaryCodecType() == null) {
+					throw new RuntimeException("Binary serialization does not support parameter " + c.getName() + "."
+							+ p.getName() + " of type " + p.getType()
+							+ "; only primitives, String and the union itself are supported");
+				}
+			}
 		}
+	}
 
-		templateSource = slurpAndCloseUtf8Stream(templateStream, "template stream");
+	// In split output, each handler and case has a base class named after it
+	// and the union, so no handler may share a name with a case
+	static void checkSplitOutput(Union unionSpec) {
+		if (!unionSpec.getSplitOutput() || unionSpec.getCases() == null || unionSpec.getHandlers() == null) {
+			return;
+		}
 
-		return templateSource;
+		HashSet<String> caseNames = new HashSet<>();
+		for (Case c : unionSpec.getCases()) {
+			caseNames.add(c.getName());
+		}
+		for (Handler h : unionSpec.getHandlers()) {
+			if (caseNames.contains(h.getName())) {
+				throw new RuntimeException("Handler " + h.getName()
+						+ " has the same name as a case, which split output does not allow");
+			}
+		}
 	}
 
-	// Read the YAML union spec from a stream using the default encoding
-	private static String readUnionSpec(InputStream src) {
-		return slurpAndCloseDefaultStream(src, "union spec");
+	// The java17 target generates a sealed interface with a record per case,
+	// which can neither extend the bases that split output generates nor be
+	// sealed with no subtypes at all
+	static void checkTarget(Union unionSpec) {
+		if (Target.forLabel(unionSpec.getTarget()) != Target.JAVA17) {
+			return;
+		}
+
+		if (unionSpec.getSplitOutput()) {
+			throw new RuntimeException("Split output is not supported with target " + Target.JAVA17.getLabel());
+		}
+		if (unionSpec.getCases() == null || unionSpec.getCases().length == 0) {
+			throw new RuntimeException("Target " + Target.JAVA17.getLabel() + " requires at least one case");
+		}
 	}
 
-	private static String slurpAndCloseDefaultStream(InputStream stream, String what) {
-		return slurpStreamAndCloseLoggingOnError(stream, null, what);
+	// The names of the no-argument methods of Object, which a record
+	// component may not have (JLS 8.10.1)
+	private static final List<String> RECORD_FORBIDDEN_COMPONENT_NAMES = Arrays.asList("clone", "finalize",
+			"getClass", "hashCode", "notify", "notifyAll", "toString", "wait");
+
+	// Each parameter gets an accessor named after it in its case class, which
+	// must not clash with a method the case inherits from the union, nor, for
+	// a record component, with a method of Object
+	static void checkParameterNames(Union unionSpec) {
+		Case[] cases = unionSpec.getCases();
+		if (cases == null) {
+			return;
+		}
+
+		HashSet<String> reserved = new HashSet<>();
+		reserved.add("tag");
+		if (unionSpec.getAnyCaseInterned()) {
+			reserved.add("internTable");
+		}
+		boolean records = Target.forLabel(unionSpec.getTarget()) == Target.JAVA17;
+
+		for (Case c : cases) {
+			if (c.getParameters() == null) {
+				continue;
+			}
+			for (Parameter p : c.getParameters()) {
+				if (reserved.contains(p.getName())) {
+					throw new RuntimeException("Parameter " + c.getName() + "." + p.getName()
+							+ " would have an accessor clashing with the generated method " + p.getName() + "()");
+				}
+				if (records && RECORD_FORBIDDEN_COMPONENT_NAMES.contains(p.getName())) {
+					throw new RuntimeException("Parameter " + c.getName() + "." + p.getName()
+							+ " is not allowed with target " + Target.JAVA17.getLabel()
+							+ ", as a record component cannot be named after the method " + p.getName() + "() of Object");
+				}
+			}
+		}
 	}
 
-	private static String slurpAndCloseUtf8Stream(InputStream stream, String what) {
-		return slurpStreamAndCloseLoggingOnError(stream, UTF8, what);
+	// Reads the YAML union spec from a stream using the default encoding
+	static Reader openUnionSpec(InputStream src) {
+		return new InputStreamReader(src, Charset.defaultCharset());
 	}
 
-	private static String slurpStreamAndCloseLoggingOnError(InputStream stream, Charset charset, String what) {
+	static String slurpStreamAndCloseLoggingOnError(InputStream stream, Charset charset, String what) {
 		try {
 			return Slurp.slurpString(stream, charset);
 		} catch (IOException e) {
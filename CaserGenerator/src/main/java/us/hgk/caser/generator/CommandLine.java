@@ -0,0 +1,189 @@
+package us.hgk.caser.generator;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import us.hgk.caser.generator.ConfigModels.Target;
+
+/**
+ * Parsed command-line arguments for {@link Command}.
+ * <p>
+ * With no arguments, a single union spec is read from stdin and the generated
+ * class is written to stdout. Otherwise, the arguments name an output root and
+ * one or more spec files or directories to be generated in batch.
+ */
+final class CommandLine {
+	static final String USAGE = "Usage:\n" //
+			+ "  Command [--template <file>] [--target <java7|java17>] [--metrics <file>] < spec.yml > Name.java\n" //
+			+ "  Command [--template <file>] [--target <java7|java17>] -o <output-root> [--threads <n>]\n" //
+			+ "          [--incremental] [--watch] [--benchmarks] [--metrics <file>] <spec-or-directory>...\n";
+
+	private Path outputRoot;
+	private int threads;
+	private Path templatePath;
+	private Target target;
+	private boolean incremental;
+	private boolean watch;
+	private boolean benchmarks;
+	private Path metricsPath;
+	private final List<Path> specPaths = new ArrayList<>();
+
+	private CommandLine() {
+	}
+
+	/**
+	 * Parses the given command-line arguments.
+	 *
+	 * @param args
+	 *            The arguments passed to {@link Command#main(String[])}
+	 * @return The parsed arguments
+	 * @throws IllegalArgumentException
+	 *             If the arguments are not valid
+	 */
+	static CommandLine parse(String[] args) {
+		CommandLine result = new CommandLine();
+
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+
+			if ("-o".equals(arg) || "--output".equals(arg)) {
+				result.outputRoot = Paths.get(requireValue(args, ++i, arg));
+			} else if ("--threads".equals(arg)) {
+				result.threads = parsePositiveInt(requireValue(args, ++i, arg), arg);
+			} else if ("--template".equals(arg)) {
+				result.templatePath = Paths.get(requireValue(args, ++i, arg));
+			} else if ("--target".equals(arg)) {
+				result.target = parseTarget(requireValue(args, ++i, arg), arg);
+			} else if ("--incremental".equals(arg)) {
+				result.incremental = true;
+			} else if ("--watch".equals(arg)) {
+				result.watch = true;
+			} else if ("--benchmarks".equals(arg)) {
+				result.benchmarks = true;
+			} else if ("--metrics".equals(arg)) {
+				result.metricsPath = Paths.get(requireValue(args, ++i, arg));
+			} else if (arg.startsWith("-")) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			} else {
+				result.specPaths.add(Paths.get(arg));
+			}
+		}
+
+		if (result.outputRoot == null && !result.specPaths.isEmpty()) {
+			throw new IllegalArgumentException("Spec paths were given without an output root (-o)");
+		}
+		if (result.incremental && result.outputRoot == null) {
+			throw new IllegalArgumentException("--incremental requires an output root (-o)");
+		}
+		if (result.watch && result.outputRoot == null) {
+			throw new IllegalArgumentException("--watch requires an output root (-o)");
+		}
+		if (result.benchmarks && result.outputRoot == null) {
+			throw new IllegalArgumentException("--benchmarks requires an output root (-o)");
+		}
+		if (result.outputRoot != null && result.specPaths.isEmpty()) {
+			throw new IllegalArgumentException("An output root was given without any spec paths");
+		}
+
+		return result;
+	}
+
+	private static String requireValue(String[] args, int i, String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Option " + option + " requires a value");
+		}
+		return args[i];
+	}
+
+	private static Target parseTarget(String value, String option) {
+		Target target = Target.forLabel(value);
+		if (target == null) {
+			throw new IllegalArgumentException("Option " + option + " requires one of: " + Target.labels());
+		}
+		return target;
+	}
+
+	private static int parsePositiveInt(String value, String option) {
+		int n;
+		try {
+			n = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Option " + option + " requires an integer value", e);
+		}
+		if (n < 1) {
+			throw new IllegalArgumentException("Option " + option + " requires a positive value");
+		}
+		return n;
+	}
+
+	boolean isBatch() {
+		return outputRoot != null;
+	}
+
+	Path getOutputRoot() {
+		return outputRoot;
+	}
+
+	/**
+	 * Returns the requested number of worker threads, or 0 if not specified.
+	 */
+	int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Returns the path of a custom template, or {@code null} to use the
+	 * built-in template.
+	 */
+	Path getTemplatePath() {
+		return templatePath;
+	}
+
+	/**
+	 * Returns the target for which every union is to be generated, whatever
+	 * its spec says, or {@code null} to use the target in each spec.
+	 */
+	Target getTarget() {
+		return target;
+	}
+
+	/**
+	 * Returns whether specs that are unchanged since the last run are to be
+	 * skipped.
+	 */
+	boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * Returns whether to keep running after the initial generation,
+	 * regenerating specs as they change.
+	 */
+	boolean isWatch() {
+		return watch;
+	}
+
+	/**
+	 * Returns whether a JMH benchmark class is to be generated next to each
+	 * union.
+	 */
+	boolean isBenchmarks() {
+		return benchmarks;
+	}
+
+	/**
+	 * Returns the file to which a JSON report of the time, allocation and
+	 * sizes of each phase is to be written, {@code -} for stderr, or
+	 * {@code null} if no report is wanted.
+	 */
+	Path getMetricsPath() {
+		return metricsPath;
+	}
+
+	List<Path> getSpecPaths() {
+		return Collections.unmodifiableList(specPaths);
+	}
+}
@@ -1,6 +1,7 @@
 package us.hgk.caser.generator;
 
 import java.io.IOException;
+import java.io.Reader;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -24,6 +25,10 @@ class ConfigIO {
 		return mapper.readValue(yamlSource, Union.class);
 	}
 
+	public static Union readUnionFrom(Reader yamlSource) throws JsonParseException, JsonMappingException, IOException {
+		return mapper.readValue(yamlSource, Union.class);
+	}
+
 	public static String writeUnionToString(Union thing) throws JsonProcessingException {
 		return mapper.writeValueAsString(thing);
 	}
@@ -1,13 +1,10 @@
 package us.hgk.caser.generator;
 
 import java.util.Arrays;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ConfigModels {
-	private static final Logger log = LoggerFactory.getLogger(ConfigModels.class);
-	
 	public static class Union {
 		private String packageName;
 		private String name;
@@ -15,6 +12,14 @@ public class ConfigModels {
 		private String modifiers;
 		private Case[] cases;
 		private boolean excludeDefaultHandlers = false;
+		private boolean primitiveDefaultHandlers = false;
+		private boolean identityEquality = false;
+		private boolean intern = false;
+		private boolean binarySerialization = false;
+		private boolean column = false;
+		private boolean ringBuffer = false;
+		private boolean splitOutput = false;
+		private String target;
 		private Handler[] handlers;
 
 		public String getPackageName() {
@@ -73,11 +78,196 @@ public class ConfigModels {
 			this.excludeDefaultHandlers = excludeDefaultHandlers;
 		}
 
+		/**
+		 * If true, the default handlers also include IntFunctions,
+		 * LongFunctions, DoubleFunctions and BooleanFunctions, whose cases
+		 * return the respective primitive type.
+		 */
+		public boolean getPrimitiveDefaultHandlers() {
+			return primitiveDefaultHandlers;
+		}
+
+		public void setPrimitiveDefaultHandlers(boolean primitiveDefaultHandlers) {
+			this.primitiveDefaultHandlers = primitiveDefaultHandlers;
+		}
+
+		/**
+		 * If true, the generated cases keep the identity-based
+		 * {@code equals()} and {@code hashCode()} inherited from
+		 * {@link Object} instead of getting structural ones.
+		 */
+		public boolean getIdentityEquality() {
+			return identityEquality;
+		}
+
+		public void setIdentityEquality(boolean identityEquality) {
+			this.identityEquality = identityEquality;
+		}
+
+		/**
+		 * If true, the {@code of()} methods of cases return canonical
+		 * instances from an intern table, unless a case says otherwise.
+		 */
+		public boolean getIntern() {
+			return intern;
+		}
+
+		public void setIntern(boolean intern) {
+			this.intern = intern;
+		}
+
+		/**
+		 * If true, the union gets compact binary {@code writeTo(DataOutput)}
+		 * and {@code readFrom(DataInput)} methods.
+		 */
+		public boolean getBinarySerialization() {
+			return binarySerialization;
+		}
+
+		public void setBinarySerialization(boolean binarySerialization) {
+			this.binarySerialization = binarySerialization;
+		}
+
+		/**
+		 * If true, the union gets a {@code Column} container that stores
+		 * values as a tag array plus one array per case parameter.
+		 */
+		public boolean getColumn() {
+			return column;
+		}
+
+		public void setColumn(boolean column) {
+			this.column = column;
+		}
+
+		/**
+		 * If true, the union gets a {@code RingBuffer} class, a bounded
+		 * lock-free {@code Acceptor} for passing values from many producer
+		 * threads to one consumer.
+		 */
+		public boolean getRingBuffer() {
+			return ringBuffer;
+		}
+
+		public void setRingBuffer(boolean ringBuffer) {
+			this.ringBuffer = ringBuffer;
+		}
+
+		/**
+		 * If true, the bodies of the handler and case classes are generated
+		 * into package-private top-level classes, one file each, which the
+		 * nested classes of the union extend. The union's own file then grows
+		 * with the number of cases plus the number of handlers rather than
+		 * with their product.
+		 */
+		public boolean getSplitOutput() {
+			return splitOutput;
+		}
+
+		public void setSplitOutput(boolean splitOutput) {
+			this.splitOutput = splitOutput;
+		}
+
+		/**
+		 * The label of the {@link Target} for which code is generated, or
+		 * {@code null} for the default, {@code java7}.
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		public void setTarget(String target) {
+			this.target = target;
+		}
+
+		/**
+		 * Returns the smallest primitive type that can hold every case tag,
+		 * for use as the element type of a {@code Column}'s tag array.
+		 */
+		public String getColumnTagType() {
+			int caseCount = (cases == null) ? 0 : cases.length;
+			if (caseCount <= 0x100) {
+				return "byte";
+			} else if (caseCount <= 0x10000) {
+				return "short";
+			}
+			return "int";
+		}
+
+		/**
+		 * Returns the expression suffix that recovers an unsigned tag from an
+		 * element of a {@code Column}'s tag array, as typed by
+		 * {@link #getColumnTagType()}.
+		 */
+		public String getColumnTagMask() {
+			String tagType = getColumnTagType();
+			if ("byte".equals(tagType)) {
+				return " & 0xff";
+			} else if ("short".equals(tagType)) {
+				return " & 0xffff";
+			}
+			return "";
+		}
+
+		/**
+		 * Returns whether any case has a parameter of this union's own type.
+		 */
+		public boolean getRecursive() {
+			if (cases != null) {
+				for (Case c : cases) {
+					if (c.getRecursive()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns whether any parameter is read from column storage through a
+		 * cast, so that the column methods reading every case's parameters
+		 * need the cast's unchecked warning suppressed.
+		 */
+		public boolean getAnyColumnCastNeeded() {
+			if (cases != null) {
+				for (Case c : cases) {
+					if (c.getParameters() != null) {
+						for (Parameter p : c.getParameters()) {
+							if (p.getColumnCastNeeded()) {
+								return true;
+							}
+						}
+					}
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * Returns whether any case with parameters is interned, in which case
+		 * an intern table is generated.
+		 */
+		public boolean getAnyCaseInterned() {
+			if (cases != null) {
+				for (Case c : cases) {
+					if (Boolean.TRUE.equals(c.getIntern()) && c.getParameters() != null
+							&& c.getParameters().length > 0) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
 		@Override
 		public String toString() {
 			return "Union [packageName=" + packageName + ", name=" + name + ", doc=" + doc + ", modifiers=" + modifiers
 					+ ", cases=" + Arrays.toString(cases) + ", excludeDefaultHandlers=" + excludeDefaultHandlers
-					+ ", handlers=" + Arrays.toString(handlers) + "]";
+					+ ", primitiveDefaultHandlers=" + primitiveDefaultHandlers
+					+ ", identityEquality=" + identityEquality + ", intern=" + intern + ", binarySerialization="
+					+ binarySerialization + ", column=" + column
+					+ ", ringBuffer=" + ringBuffer + ", splitOutput=" + splitOutput + ", target=" + target + ", handlers="
+					+ Arrays.toString(handlers) + "]";
 		}
 	}
 
@@ -85,6 +275,7 @@ public class ConfigModels {
 		private String name;
 		private String doc;
 		private Parameter[] parameters;
+		private Boolean intern;
 
 		public String getName() {
 			return name;
@@ -110,9 +301,52 @@ public class ConfigModels {
 			this.parameters = parameters;
 		}
 
+		/**
+		 * Returns whether {@code of()} returns canonical instances of this
+		 * case, or {@code null} if the union's setting applies.
+		 */
+		public Boolean getIntern() {
+			return intern;
+		}
+
+		public void setIntern(Boolean intern) {
+			this.intern = intern;
+		}
+
+		/**
+		 * Returns the number of parameters of this case that have the union's
+		 * own type.
+		 */
+		public int getRecursiveParameterCount() {
+			int count = 0;
+			if (parameters != null) {
+				for (Parameter p : parameters) {
+					if (p.getRecursive()) {
+						++count;
+					}
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * Returns whether any parameter of this case has the union's own type.
+		 */
+		public boolean getRecursive() {
+			if (parameters != null) {
+				for (Parameter p : parameters) {
+					if (p.getRecursive()) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
 		@Override
 		public String toString() {
-			return "Case [name=" + name + ", doc=" + doc + ", parameters=" + Arrays.toString(parameters) + "]";
+			return "Case [name=" + name + ", doc=" + doc + ", parameters=" + Arrays.toString(parameters) + ", intern="
+					+ intern + "]";
 		}
 	}
 
@@ -120,6 +354,9 @@ public class ConfigModels {
 		private String name;
 		private String type;
 		private String doc;
+		private boolean recursive = false;
+		private int recursiveIndex = -1;
+		private String sampleExpression = "null";
 
 		public String getName() {
 			return name;
@@ -145,6 +382,283 @@ public class ConfigModels {
 			this.doc = doc;
 		}
 
+		/**
+		 * Returns whether this parameter has the type of the union to which it
+		 * belongs. This is determined by the fixup stage, not read from the
+		 * spec.
+		 */
+		public boolean getRecursive() {
+			return recursive;
+		}
+
+		void setRecursive(boolean recursive) {
+			this.recursive = recursive;
+		}
+
+		/**
+		 * For a recursive parameter, returns its position among the recursive
+		 * parameters of its case, counting from 0; otherwise, returns -1.
+		 */
+		public int getRecursiveIndex() {
+			return recursiveIndex;
+		}
+
+		void setRecursiveIndex(int recursiveIndex) {
+			this.recursiveIndex = recursiveIndex;
+		}
+
+		/**
+		 * Returns the suffix of the generated {@code BinaryCodec} methods that
+		 * read and write this parameter ({@code "Int"}, {@code "String"} and
+		 * so on), or {@code null} if binary serialization does not support
+		 * its type. Recursive parameters are encoded separately and also
+		 * return {@code null}.
+		 */
+		public String getBinaryCodecType() {
+			if (recursive || type == null) {
+				return null;
+			}
+			NonObjectReturnType t = getPrimitiveType();
+			if (t != null) {
+				String typeName = t.typeName();
+				return Character.toUpperCase(typeName.charAt(0)) + typeName.substring(1);
+			}
+			String trimmed = type.trim();
+			if ("String".equals(trimmed) || "java.lang.String".equals(trimmed)) {
+				return "String";
+			}
+			return null;
+		}
+
+		/**
+		 * Returns a Java expression for an arbitrary value of this parameter's
+		 * type, as used in generated benchmarks; {@code "null"} if none could
+		 * be synthesized.
+		 */
+		public String getSampleExpression() {
+			return sampleExpression;
+		}
+
+		void setSampleExpression(String sampleExpression) {
+			this.sampleExpression = sampleExpression;
+		}
+
+		/**
+		 * Returns an expression for an arbitrary value of the given type, or
+		 * {@code null} if the type is not a primitive, a boxed primitive, a
+		 * string or an array of one of those. The given name is used as the
+		 * content of strings.
+		 */
+		static String sampleExpressionFor(String type, String name) {
+			String t = type.trim();
+
+			if (t.endsWith("[]") && !t.contains("<")) {
+				String element = sampleExpressionFor(t.substring(0, t.length() - 2), name);
+				return "new " + t + " { " + ((element == null) ? "" : element + " ") + "}";
+			}
+
+			if ("String".equals(t) || "java.lang.String".equals(t) || "CharSequence".equals(t)
+					|| "java.lang.CharSequence".equals(t) || "Object".equals(t) || "java.lang.Object".equals(t)) {
+				return "\"" + name + "\"";
+			}
+
+			String unboxed = BOXED_TYPES.get(t.startsWith("java.lang.") ? t.substring("java.lang.".length()) : t);
+			NonObjectReturnType primitive = Handler.getNonObjectReturnType((unboxed != null) ? unboxed : t);
+			if (primitive == null || primitive.isVoid()) {
+				return null;
+			}
+
+			switch (primitive) {
+			case BOOLEAN:
+				return "true";
+			case BYTE:
+				return "((byte) 1)";
+			case CHAR:
+				return "'x'";
+			case SHORT:
+				return "((short) 2)";
+			case INT:
+				return "3";
+			case LONG:
+				return "4L";
+			case FLOAT:
+				return "5.0f";
+			default:
+				return "6.0";
+			}
+		}
+
+		private static final Map<String, String> BOXED_TYPES = new HashMap<>();
+
+		static {
+			BOXED_TYPES.put("Boolean", "boolean");
+			BOXED_TYPES.put("Byte", "byte");
+			BOXED_TYPES.put("Character", "char");
+			BOXED_TYPES.put("Short", "short");
+			BOXED_TYPES.put("Integer", "int");
+			BOXED_TYPES.put("Long", "long");
+			BOXED_TYPES.put("Float", "float");
+			BOXED_TYPES.put("Double", "double");
+		}
+
+		/**
+		 * Returns whether this parameter has a primitive type.
+		 */
+		public boolean getPrimitive() {
+			return getPrimitiveType() != null;
+		}
+
+		/**
+		 * Returns the element type of the array in which a generated
+		 * {@code Column} stores this parameter: the primitive type itself, or
+		 * {@code Object} for any reference type.
+		 */
+		public String getColumnStorageType() {
+			NonObjectReturnType t = getPrimitiveType();
+			return (t != null) ? t.typeName() : "Object";
+		}
+
+		/**
+		 * Returns whether a value read from the array in which a generated
+		 * {@code Column} stores this parameter must be cast to the
+		 * parameter's type, which is so unless the array already has that
+		 * type.
+		 */
+		public boolean getColumnCastNeeded() {
+			if (getPrimitiveType() != null || type == null) {
+				return false;
+			}
+			String t = type.trim();
+			return !"Object".equals(t) && !"java.lang.Object".equals(t);
+		}
+
+		// The primitive type of this parameter, or null if it is not primitive
+		private NonObjectReturnType getPrimitiveType() {
+			if (type == null) {
+				return null;
+			}
+			NonObjectReturnType t = Handler.getNonObjectReturnType(type.trim());
+			return (t == null || t.isVoid()) ? null : t;
+		}
+
+		private boolean isArray() {
+			return type != null && type.trim().endsWith("[]");
+		}
+
+		// True for a one-dimensional array of primitives, which the
+		// non-deep methods of java.util.Arrays handle
+		private boolean isPrimitiveArray() {
+			if (!isArray()) {
+				return false;
+			}
+			String elementType = type.trim();
+			elementType = elementType.substring(0, elementType.length() - 2).trim();
+			NonObjectReturnType t = Handler.getNonObjectReturnType(elementType);
+			return t != null && !t.isVoid();
+		}
+
+		/**
+		 * Returns a Java expression that is true if the field for this
+		 * parameter has the same value in {@code this} and {@code other}.
+		 */
+		public String getEqualsExpression() {
+			return equalsExpression("p_" + name, "other.p_" + name);
+		}
+
+		/**
+		 * As {@link #getEqualsExpression()}, but for the component of a
+		 * record generated for the {@code java17} target.
+		 */
+		public String getComponentEqualsExpression() {
+			return equalsExpression("this." + name, "other." + name);
+		}
+
+		private String equalsExpression(String mine, String theirs) {
+			NonObjectReturnType t = getPrimitiveType();
+
+			if (t == NonObjectReturnType.FLOAT) {
+				return "Float.floatToIntBits(" + mine + ") == Float.floatToIntBits(" + theirs + ")";
+			} else if (t == NonObjectReturnType.DOUBLE) {
+				return "Double.doubleToLongBits(" + mine + ") == Double.doubleToLongBits(" + theirs + ")";
+			} else if (t != null) {
+				return mine + " == " + theirs;
+			} else if (isPrimitiveArray()) {
+				return "java.util.Arrays.equals(" + mine + ", " + theirs + ")";
+			} else if (isArray()) {
+				return "java.util.Arrays.deepEquals(" + mine + ", " + theirs + ")";
+			}
+			return "java.util.Objects.equals(" + mine + ", " + theirs + ")";
+		}
+
+		/**
+		 * Returns a Java {@code int} expression hashing the field for this
+		 * parameter, consistent with {@link #getEqualsExpression()}.
+		 */
+		public String getHashCodeExpression() {
+			return hashCodeExpression("p_" + name);
+		}
+
+		/**
+		 * As {@link #getHashCodeExpression()}, but for the component of a
+		 * record generated for the {@code java17} target.
+		 */
+		public String getComponentHashCodeExpression() {
+			return hashCodeExpression("this." + name);
+		}
+
+		private String hashCodeExpression(String mine) {
+			NonObjectReturnType t = getPrimitiveType();
+
+			if (t == null) {
+				if (isPrimitiveArray()) {
+					return "java.util.Arrays.hashCode(" + mine + ")";
+				} else if (isArray()) {
+					return "java.util.Arrays.deepHashCode(" + mine + ")";
+				}
+				return "java.util.Objects.hashCode(" + mine + ")";
+			}
+
+			switch (t) {
+			case BOOLEAN:
+				return "(" + mine + " ? 1231 : 1237)";
+			case LONG:
+				return "(int) (" + mine + " ^ (" + mine + " >>> 32))";
+			case FLOAT:
+				return "Float.floatToIntBits(" + mine + ")";
+			case DOUBLE:
+				return "(int) (Double.doubleToLongBits(" + mine + ") ^ (Double.doubleToLongBits(" + mine + ") >>> 32))";
+			default:
+				// int, or a narrower type that widens to int without a cast
+				return mine;
+			}
+		}
+
+		/**
+		 * Returns the argument with which a generated {@code appendTo} passes
+		 * the field for this parameter to {@link StringBuilder#append}, so
+		 * that it is written as string concatenation would write it. Only a
+		 * {@code char[]} needs care, since {@code append} would otherwise
+		 * write its characters rather than its identity.
+		 */
+		public String getAppendArgument() {
+			return appendArgument("p_" + name);
+		}
+
+		/**
+		 * As {@link #getAppendArgument()}, but for the component of a record
+		 * generated for the {@code java17} target.
+		 */
+		public String getComponentAppendArgument() {
+			return appendArgument("this." + name);
+		}
+
+		private String appendArgument(String mine) {
+			if (type != null && type.replace(" ", "").equals("char[]")) {
+				return "(Object) " + mine;
+			}
+			return mine;
+		}
+
 		@Override
 		public String toString() {
 			return "Parameter [name=" + name + ", type=" + type + ", doc=" + doc + "]";
@@ -225,6 +739,54 @@ public class ConfigModels {
 		}
 	}
 
+	/**
+	 * The Java version for which a union is generated, which selects the
+	 * built-in template used.
+	 */
+	enum Target {
+		/**
+		 * An abstract class with a final nested class per case, dispatching
+		 * to handlers by virtual calls; compiles on Java 7 and later.
+		 */
+		JAVA7,
+		/**
+		 * A sealed interface with a record per case, dispatching to handlers
+		 * by type patterns; compiles on Java 17 and later.
+		 */
+		JAVA17;
+
+		public String getLabel() {
+			return name().toLowerCase();
+		}
+
+		private static final Map<String, Target> BY_LABEL = new HashMap<>();
+
+		static {
+			for (Target t : values()) {
+				BY_LABEL.put(t.getLabel(), t);
+			}
+		}
+
+		/**
+		 * Returns the constant whose {@link #getLabel()} is exactly the given
+		 * label, or {@code null} if there is none.
+		 */
+		public static Target forLabel(String label) {
+			return BY_LABEL.get(label);
+		}
+
+		/**
+		 * Returns the labels of all the constants, for messages.
+		 */
+		public static String labels() {
+			StringBuilder sb = new StringBuilder();
+			for (Target t : values()) {
+				sb.append((sb.length() == 0) ? "" : ", ").append(t.getLabel());
+			}
+			return sb.toString();
+		}
+	}
+
 	enum NonObjectReturnType {
 		VOID(null), BOOLEAN("false"), BYTE("((byte)0)"), CHAR("((char)0)"), SHORT("((short)0)"), INT("0"), LONG(
 				"0L"), FLOAT("0.0f"), DOUBLE("0.0");
@@ -243,22 +805,24 @@ public class ConfigModels {
 			return defaultValueExpression;
 		}
 
-		public static NonObjectReturnType valueOf(String name, boolean caseSensitive) {
-			if (!caseSensitive) {
-				name = name.toUpperCase();
-			}
-			return valueOf(name);
-		}
-
 		public String typeName() {
 			return name().toLowerCase();
 		}
-		
-		public static NonObjectReturnType valueOfLower(String lowerCaseName) {
-			if (!lowerCaseName.toLowerCase().equals(lowerCaseName)) {
-				throw new IllegalArgumentException("Given name must be lower-case");
+
+		private static final Map<String, NonObjectReturnType> BY_TYPE_NAME = new HashMap<>();
+
+		static {
+			for (NonObjectReturnType t : values()) {
+				BY_TYPE_NAME.put(t.typeName(), t);
 			}
-			return valueOf(lowerCaseName, false);
+		}
+
+		/**
+		 * Returns the constant whose {@link #typeName()} is exactly the given
+		 * name, or {@code null} if there is none.
+		 */
+		public static NonObjectReturnType forTypeName(String typeName) {
+			return BY_TYPE_NAME.get(typeName);
 		}
 	}
 
@@ -269,10 +833,6 @@ public class ConfigModels {
 		private boolean returnsGeneric = false;
 		private String[] throws_;
 		private String default_;
-		
-		public Handler() {
-			log.info("Handler being created");
-		}
 
 		public String getName() {
 			return name;
@@ -294,17 +854,12 @@ public class ConfigModels {
 			return getNonObjectReturnType(returns);
 		}
 
-		private static NonObjectReturnType getNonObjectReturnType(String returnTypeName) {
+		static NonObjectReturnType getNonObjectReturnType(String returnTypeName) {
 			if (returnTypeName == null) {
 				return NonObjectReturnType.VOID;
 			}
 
-			try {
-				return NonObjectReturnType.valueOfLower(returnTypeName);
-			} catch (IllegalArgumentException e) {
-				// Name was not all lower-case or adjusted name is not found
-				return null;
-			}
+			return NonObjectReturnType.forTypeName(returnTypeName);
 		}
 
 		public String getReturns() {
@@ -357,7 +912,6 @@ public class ConfigModels {
 		}
 
 		public void setThrows(String[] throws_) {
-			log.info("throws being set to: " + Arrays.toString(throws_));
 			this.throws_ = throws_;
 		}
 
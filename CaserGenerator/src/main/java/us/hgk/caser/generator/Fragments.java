@@ -0,0 +1,191 @@
+package us.hgk.caser.generator;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.Helper;
+import com.github.jknack.handlebars.Options;
+
+import us.hgk.caser.generator.ResolvedModels.Union;
+
+/**
+ * The {@code fragments} block helper, which renders its block once for each
+ * element of a list, like {@code each}, but may render the elements
+ * concurrently.
+ * <p>
+ * The templates use it for the loops that dominate the size of the output for
+ * large unions, such as the handler classes and the case classes. If the
+ * context's data holds a {@link ForkJoinPool} under {@link #POOL}, the elements
+ * are divided into contiguous chunks, each chunk is rendered by a task on that
+ * pool, and the results are concatenated in order, so the output is the same
+ * as if the elements had been rendered one after another. Otherwise, or when
+ * the block is not at the top level of the template, it behaves exactly like
+ * {@code each}.
+ * <p>
+ * Each chunk is rendered in a context of its own, with its own data, because
+ * Handlebars shares one data map among all the contexts of a render and
+ * writes to it as blocks are entered.
+ */
+final class Fragments implements Helper<Object> {
+	static final String NAME = "fragments";
+
+	/**
+	 * The key of the context data under which the pool to render on is kept.
+	 */
+	static final String POOL = Fragments.class.getName() + ".pool";
+
+	static final Fragments INSTANCE = new Fragments();
+
+	// Enough chunks per thread that one slow chunk does not hold up the rest
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	// Unions smaller than this, measured as cases x (handlers + 1), render
+	// too quickly for the tasks to pay for themselves
+	private static final int PARALLEL_THRESHOLD = 2048;
+
+	// Created on first use, so that runs that never render a large union
+	// start no threads
+	private static final class Shared {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+
+	/**
+	 * Returns the pool on which the given union should be rendered, or
+	 * {@code null} if it should be rendered on the calling thread alone.
+	 */
+	static ForkJoinPool poolFor(Union unionSpec) {
+		if (Runtime.getRuntime().availableProcessors() < 2) {
+			return null;
+		}
+
+		int cases = unionSpec.getCases().size();
+		int handlers = unionSpec.getHandlers().size();
+		return ((long) cases * (handlers + 1) < PARALLEL_THRESHOLD) ? null : Shared.POOL;
+	}
+
+	private Fragments() {
+	}
+
+	@Override
+	public Object apply(Object items, Options options) throws IOException {
+		List<?> list = asList(items);
+		if (list.isEmpty()) {
+			return options.inverse();
+		}
+
+		Object pool = options.data(POOL);
+		// Only a top-level block can be rendered against a fresh context;
+		// nested blocks, including any inside a chunk, render in place
+		if (!(pool instanceof ForkJoinPool) || options.context.parent() != null || ForkJoinTask.inForkJoinPool()) {
+			Options.Buffer buffer = options.buffer();
+			render(options, options.context, list, 0, list.size(), buffer);
+			return buffer;
+		}
+
+		ForkJoinPool forkJoinPool = (ForkJoinPool) pool;
+		int chunkCount = Math.min(list.size(), forkJoinPool.getParallelism() * CHUNKS_PER_THREAD);
+		ArrayList<Callable<String>> chunks = new ArrayList<>(chunkCount);
+		for (int i = 0; i < chunkCount; ++i) {
+			chunks.add(new Chunk(options, list, i * list.size() / chunkCount, (i + 1) * list.size() / chunkCount));
+		}
+
+		Options.Buffer buffer = options.buffer();
+		try {
+			for (Future<String> chunk : forkJoinPool.invokeAll(chunks)) {
+				buffer.append(chunk.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while rendering template", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException("Error rendering template: " + cause.getMessage(), cause);
+		}
+		return buffer;
+	}
+
+	// Renders a contiguous range of the elements into a string
+	private static final class Chunk implements Callable<String> {
+		private final Options options;
+		private final List<?> items;
+		private final int from;
+		private final int to;
+
+		Chunk(Options options, List<?> items, int from, int to) {
+			this.options = options;
+			this.items = items;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String call() throws IOException {
+			// Stands in for the top-level context, which has no parent, and
+			// is created the same way so that it resolves expressions alike
+			Context parent = ModelValueResolver.newContext(options.context.model());
+			try {
+				StringBuilder out = new StringBuilder();
+				render(options, parent, items, from, to, out);
+				return out.toString();
+			} finally {
+				parent.destroy();
+			}
+		}
+	}
+
+	// Renders the block for elements from (inclusive) to to (exclusive),
+	// with the same data and block parameters as each
+	private static void render(Options options, Context parent, List<?> items, int from, int to, Appendable out)
+			throws IOException {
+		int last = items.size() - 1;
+		for (int i = from; i < to; ++i) {
+			Object item = items.get(i);
+			boolean even = (i % 2 == 0);
+			Context itemContext = Context.newContext(parent, item);
+			itemContext.combine("@index", i) //
+					.combine("@first", (i == 0) ? "first" : "") //
+					.combine("@last", (i == last) ? "last" : "") //
+					.combine("@odd", even ? "" : "odd") //
+					.combine("@even", even ? "even" : "") //
+					.combine("@index_1", i + 1);
+			out.append(options.apply(options.fn, itemContext, Arrays.<Object> asList(item, i)));
+		}
+	}
+
+	private static List<?> asList(Object items) {
+		if (items == null) {
+			return Collections.emptyList();
+		} else if (items instanceof List) {
+			return (List<?>) items;
+		} else if (items instanceof Iterable) {
+			ArrayList<Object> list = new ArrayList<>();
+			for (Object item : (Iterable<?>) items) {
+				list.add(item);
+			}
+			return list;
+		} else if (items.getClass().isArray()) {
+			int length = Array.getLength(items);
+			ArrayList<Object> list = new ArrayList<>(length);
+			for (int i = 0; i < length; ++i) {
+				list.add(Array.get(items, i));
+			}
+			return list;
+		}
+		throw new IllegalArgumentException("The " + NAME + " helper requires a list or array, not " + items.getClass());
+	}
+}
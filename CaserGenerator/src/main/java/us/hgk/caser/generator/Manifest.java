@@ -0,0 +1,310 @@
+package us.hgk.caser.generator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records, for each spec generated in incremental mode, a hash of everything
+ * that went into generating it, including the generator's own code, along
+ * with the files it was generated into. A spec whose current hash matches its
+ * recorded hash, and whose output files all still exist, does not need to be
+ * generated again. Entries for specs that no longer exist are dropped when
+ * the manifest is saved.
+ * <p>
+ * Instances are safe for use by multiple threads.
+ */
+final class Manifest {
+	private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	static final String FILE_NAME = ".caser-manifest";
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	/**
+	 * A recorded hash and the output files it was generated into, the union
+	 * itself first.
+	 */
+	static final class Entry {
+		private final String hash;
+		private final List<Path> outputPaths;
+
+		Entry(String hash, List<Path> outputPaths) {
+			this.hash = hash;
+			this.outputPaths = Collections.unmodifiableList(new ArrayList<>(outputPaths));
+		}
+
+		String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Returns the file the union itself was generated into.
+		 */
+		Path getOutputPath() {
+			return outputPaths.get(0);
+		}
+
+		List<Path> getOutputPaths() {
+			return outputPaths;
+		}
+
+		/**
+		 * Returns whether every one of the output files still exists.
+		 */
+		boolean outputsExist() {
+			for (Path output : outputPaths) {
+				if (!Files.isRegularFile(output)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private final Path file;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private Manifest(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Loads the manifest kept in the given output root. If there is no
+	 * manifest yet, or it cannot be read, an empty one is returned.
+	 */
+	static Manifest load(Path outputRoot) {
+		Manifest manifest = new Manifest(outputRoot.resolve(FILE_NAME));
+
+		if (Files.isRegularFile(manifest.file)) {
+			Properties props = new Properties();
+			try (InputStream in = Files.newInputStream(manifest.file)) {
+				props.load(in);
+			} catch (IOException e) {
+				log.warn("Ignoring unreadable manifest " + manifest.file + ": " + e.getMessage());
+				return manifest;
+			}
+
+			// Each output is named relative to the output root, by package
+			// directories and a class name, none of which can contain spaces
+			for (String spec : props.stringPropertyNames()) {
+				String[] parts = props.getProperty(spec).split(" ");
+				if (parts.length > 1) {
+					ArrayList<Path> outputs = new ArrayList<>();
+					for (int i = 1; i < parts.length; ++i) {
+						outputs.add(outputRoot.resolve(parts[i]));
+					}
+					manifest.entries.put(spec, new Entry(parts[0], outputs));
+				}
+			}
+		}
+
+		return manifest;
+	}
+
+	/**
+	 * Returns the entry recorded for the given spec, or {@code null} if there
+	 * is none.
+	 */
+	Entry get(Path spec) {
+		return entries.get(keyFor(spec));
+	}
+
+	void put(Path spec, Entry entry) {
+		entries.put(keyFor(spec), entry);
+	}
+
+	void remove(Path spec) {
+		entries.remove(keyFor(spec));
+	}
+
+	/**
+	 * Removes the entries of specs that no longer exist, so that the
+	 * manifest does not keep growing as specs are deleted or renamed.
+	 */
+	void pruneMissingSpecs() {
+		for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();) {
+			String spec = i.next();
+			if (!Files.isRegularFile(Paths.get(spec))) {
+				log.debug("Forgetting deleted union spec " + spec);
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Writes the manifest back to the output root, replacing the previous
+	 * version only once the new one has been written completely.
+	 */
+	void save() throws IOException {
+		pruneMissingSpecs();
+
+		Path outputRoot = file.getParent();
+		Properties props = new Properties();
+
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			StringBuilder value = new StringBuilder(e.getValue().getHash());
+			for (Path output : e.getValue().getOutputPaths()) {
+				value.append(' ').append(outputRoot.relativize(output).toString().replace('\\', '/'));
+			}
+			props.setProperty(e.getKey(), value.toString());
+		}
+
+		Files.createDirectories(outputRoot);
+		Path temp = Files.createTempFile(outputRoot, FILE_NAME, ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				props.store(out, "Generated by CaserGenerator; maps each spec to its input hash and output files");
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static String keyFor(Path spec) {
+		return spec.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Returns a hex-encoded SHA-256 digest of the generator fingerprint (see
+	 * {@link #generatorFingerprint()}), the template source and the spec
+	 * bytes.
+	 */
+	static String hash(String generatorFingerprint, String templateSource, byte[] specBytes) {
+		MessageDigest digest = newDigest();
+
+		// Each variable-length part is preceded by its length so that parts
+		// cannot run into one another
+		updateWithLength(digest, generatorFingerprint.getBytes(UTF8));
+		updateWithLength(digest, templateSource.getBytes(UTF8));
+		updateWithLength(digest, specBytes);
+
+		return toHex(digest.digest());
+	}
+
+	// Computed on first use, since only incremental runs need it
+	private static final class Fingerprint {
+		static final String VALUE = computeGeneratorFingerprint();
+	}
+
+	/**
+	 * Returns a digest of the generator's own code, so that any change to the
+	 * generator that could change its output invalidates the manifest, whether
+	 * or not its version number was changed. It covers the content of the jar
+	 * (or class directory) that the generator was loaded from, and the names
+	 * of the other entries on the class path, which name the versions of its
+	 * dependencies.
+	 */
+	static String generatorFingerprint() {
+		return Fingerprint.VALUE;
+	}
+
+	private static String computeGeneratorFingerprint() {
+		MessageDigest digest = newDigest();
+		updateWithLength(digest, Command.getGeneratorVersion().getBytes(UTF8));
+
+		Path code = codeLocation();
+		try {
+			if (code != null && Files.isRegularFile(code)) {
+				updateWithLength(digest, Files.readAllBytes(code));
+			} else if (code != null && Files.isDirectory(code)) {
+				for (Path file : listFiles(code)) {
+					updateWithLength(digest, code.relativize(file).toString().replace('\\', '/').getBytes(UTF8));
+					updateWithLength(digest, Files.readAllBytes(file));
+				}
+			} else {
+				log.warn("Cannot locate the generator's code; the manifest depends only on its version");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("I/O error reading the generator's code: " + e.getMessage(), e);
+		}
+
+		String classPath = System.getProperty("java.class.path", "");
+		for (String entry : classPath.split(java.io.File.pathSeparator)) {
+			Path name = Paths.get(entry).getFileName();
+			updateWithLength(digest, ((name == null) ? "" : name.toString()).getBytes(UTF8));
+		}
+
+		return toHex(digest.digest());
+	}
+
+	// The jar or directory from which the generator's classes were loaded, or
+	// null if that cannot be told
+	private static Path codeLocation() {
+		CodeSource source = Command.class.getProtectionDomain().getCodeSource();
+		URL location = (source == null) ? null : source.getLocation();
+		if (location == null || !"file".equals(location.getProtocol())) {
+			return null;
+		}
+		try {
+			return Paths.get(location.toURI());
+		} catch (URISyntaxException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	// Lists the regular files under a directory in a stable order
+	private static List<Path> listFiles(Path root) throws IOException {
+		final ArrayList<Path> files = new ArrayList<>();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; ++i) {
+			hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static void updateWithLength(MessageDigest digest, byte[] part) {
+		int n = part.length;
+		digest.update(new byte[] { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n });
+		digest.update(part);
+	}
+}
@@ -0,0 +1,478 @@
+package us.hgk.caser.generator;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Records the time taken and memory allocated by each phase of a run, with the
+ * sizes of the specs and outputs involved, and reports them as JSON.
+ * <p>
+ * Allocation is measured per thread, using the HotSpot extension of
+ * {@link ThreadMXBean}; where that is not available, allocated byte counts are
+ * reported as -1. Each spec is generated by a single worker, so other workers
+ * do not disturb its figures. A union large enough to have its fragments
+ * rendered on a fork-join pool (see {@link Fragments}) allocates on the pool's
+ * threads too, which are not measured, so the allocation of its {@code apply}
+ * phase, and of the spec as a whole, is reported as -1.
+ * <p>
+ * Instances are safe for use by multiple threads.
+ */
+final class Metrics {
+	static final String TEMPLATE = "template";
+	static final String READ = "read";
+	static final String PARSE = "parse";
+	static final String FIXUP = "fixup";
+	static final String RESOLVE = "resolve";
+	static final String APPLY = "apply";
+	static final String WRITE = "write";
+
+	private static final String[] SPEC_PHASES = { READ, PARSE, FIXUP, RESOLVE, APPLY, WRITE };
+
+	private static final com.sun.management.ThreadMXBean THREADS = allocationMeasuringThreadMXBean();
+
+	private static com.sun.management.ThreadMXBean allocationMeasuringThreadMXBean() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		try {
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+				if (sunBean.isThreadAllocatedMemorySupported()) {
+					sunBean.setThreadAllocatedMemoryEnabled(true);
+					return sunBean;
+				}
+			}
+		} catch (UnsupportedOperationException | SecurityException e) {
+			// Fall through; allocation is then not measured
+		}
+		return null;
+	}
+
+	private static long allocatedBytes() {
+		return (THREADS == null) ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Returns a mark from which a phase can later be recorded.
+	 */
+	static long[] mark() {
+		return new long[] { System.nanoTime(), allocatedBytes() };
+	}
+
+	// The time and allocation of a phase, possibly accumulated over several
+	// occurrences
+	private static final class Phase {
+		long nanos;
+		long allocatedBytes;
+
+		void add(long[] mark) {
+			nanos += System.nanoTime() - mark[0];
+			long allocated = allocatedBytes();
+			if (allocated < 0 || mark[1] < 0) {
+				allocatedBytes = -1;
+			} else if (allocatedBytes >= 0) {
+				allocatedBytes += allocated - mark[1];
+			}
+		}
+
+		Map<String, Object> toMap() {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+			map.put("nanos", nanos);
+			map.put("allocatedBytes", allocatedBytes);
+			return map;
+		}
+	}
+
+	/**
+	 * The metrics of one spec. Each instance is used by one thread at a time,
+	 * except for {@link #DISABLED}, which records nothing.
+	 */
+	static class Spec {
+		/**
+		 * A spec whose metrics are not recorded.
+		 */
+		static final Spec DISABLED = new Spec(null) {
+			@Override
+			long[] mark() {
+				return null;
+			}
+
+			@Override
+			void record(String phase, long[] mark) {
+			}
+
+			@Override
+			void setAllocationUnknown(String phase) {
+			}
+
+			@Override
+			void setStatus(String status) {
+			}
+
+			@Override
+			void setCounts(ResolvedModels.Union unionSpec) {
+			}
+
+			@Override
+			void setInputBytes(long inputBytes) {
+			}
+
+			@Override
+			void setOutputBytes(long outputBytes) {
+			}
+		};
+
+		private final String name;
+		private final LinkedHashMap<String, Phase> phases = new LinkedHashMap<>();
+		private String status;
+		private int caseCount = -1;
+		private int handlerCount = -1;
+		private long inputBytes = -1;
+		private long outputBytes = -1;
+
+		private Spec(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Returns a mark from which a phase can later be recorded.
+		 */
+		long[] mark() {
+			return Metrics.mark();
+		}
+
+		/**
+		 * Records a phase as having run from the given mark until now.
+		 */
+		void record(String phase, long[] mark) {
+			Phase p = phases.get(phase);
+			if (p == null) {
+				p = new Phase();
+				phases.put(phase, p);
+			}
+			p.add(mark);
+		}
+
+		/**
+		 * Records that the given phase, which must already have been
+		 * recorded, also allocated on threads other than the one measured,
+		 * so that its allocation is not known.
+		 */
+		void setAllocationUnknown(String phase) {
+			phases.get(phase).allocatedBytes = -1;
+		}
+
+		void setStatus(String status) {
+			this.status = status;
+		}
+
+		void setCounts(ResolvedModels.Union unionSpec) {
+			caseCount = unionSpec.getCases().size();
+			handlerCount = unionSpec.getHandlers().size();
+		}
+
+		void setInputBytes(long inputBytes) {
+			this.inputBytes = inputBytes;
+		}
+
+		void setOutputBytes(long outputBytes) {
+			this.outputBytes = outputBytes;
+		}
+
+		private long totalNanos() {
+			long total = 0;
+			for (Phase p : phases.values()) {
+				total += p.nanos;
+			}
+			return total;
+		}
+
+		private long totalAllocatedBytes() {
+			long total = 0;
+			for (Phase p : phases.values()) {
+				if (p.allocatedBytes < 0) {
+					return -1;
+				}
+				total += p.allocatedBytes;
+			}
+			return total;
+		}
+
+		Map<String, Object> toMap() {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+			map.put("spec", name);
+			map.put("status", status);
+			map.put("caseCount", caseCount);
+			map.put("handlerCount", handlerCount);
+			map.put("inputBytes", inputBytes);
+			map.put("outputBytes", outputBytes);
+			map.put("nanos", totalNanos());
+			map.put("allocatedBytes", totalAllocatedBytes());
+			LinkedHashMap<String, Object> phaseMaps = new LinkedHashMap<>();
+			for (Map.Entry<String, Phase> e : phases.entrySet()) {
+				phaseMaps.put(e.getKey(), e.getValue().toMap());
+			}
+			map.put("phases", phaseMaps);
+			return map;
+		}
+	}
+
+	private final long startNanos = System.nanoTime();
+	private final LinkedHashMap<String, Phase> runPhases = new LinkedHashMap<>();
+	private final List<Spec> specs = new ArrayList<>();
+
+	/**
+	 * Starts recording the metrics of a spec.
+	 */
+	synchronized Spec newSpec(String name) {
+		Spec spec = new Spec(name);
+		specs.add(spec);
+		return spec;
+	}
+
+	/**
+	 * Records a phase of the run as a whole, such as loading the template.
+	 */
+	synchronized void record(String phase, long[] mark) {
+		Phase p = runPhases.get(phase);
+		if (p == null) {
+			p = new Phase();
+			runPhases.put(phase, p);
+		}
+		p.add(mark);
+	}
+
+	/**
+	 * Returns the report as JSON: the run's own phases, each spec's phases and
+	 * sizes, and, across specs, the totals of each phase and the 50th, 90th
+	 * and 99th percentiles and maximum of its time, with the slowest specs.
+	 */
+	synchronized String toJson() {
+		LinkedHashMap<String, Object> report = new LinkedHashMap<>();
+		report.put("generatorVersion", Command.getGeneratorVersion());
+		report.put("nanos", System.nanoTime() - startNanos);
+
+		LinkedHashMap<String, Object> runPhaseMaps = new LinkedHashMap<>();
+		for (Map.Entry<String, Phase> e : runPhases.entrySet()) {
+			runPhaseMaps.put(e.getKey(), e.getValue().toMap());
+		}
+		report.put("phases", runPhaseMaps);
+
+		ArrayList<Map<String, Object>> specMaps = new ArrayList<>(specs.size());
+		for (Spec spec : specs) {
+			specMaps.add(spec.toMap());
+		}
+		report.put("specs", specMaps);
+
+		if (specs.size() > 1) {
+			report.put("totals", totals());
+			report.put("percentiles", percentiles());
+			report.put("slowest", slowest(5));
+		}
+
+		try {
+			return new ObjectMapper().writerWithDefaultPrettyPrinter().writeValueAsString(report);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not format metrics: " + e.getMessage(), e);
+		}
+	}
+
+	private Map<String, Object> totals() {
+		long nanos = 0, allocatedBytes = 0, inputBytes = 0, outputBytes = 0;
+		LinkedHashMap<String, Phase> phaseTotals = new LinkedHashMap<>();
+
+		for (Spec spec : specs) {
+			nanos += spec.totalNanos();
+			allocatedBytes = addKnown(allocatedBytes, spec.totalAllocatedBytes());
+			inputBytes += Math.max(0, spec.inputBytes);
+			outputBytes += Math.max(0, spec.outputBytes);
+
+			for (Map.Entry<String, Phase> e : spec.phases.entrySet()) {
+				Phase total = phaseTotals.get(e.getKey());
+				if (total == null) {
+					total = new Phase();
+					phaseTotals.put(e.getKey(), total);
+				}
+				total.nanos += e.getValue().nanos;
+				total.allocatedBytes = addKnown(total.allocatedBytes, e.getValue().allocatedBytes);
+			}
+		}
+
+		LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+		map.put("specs", specs.size());
+		map.put("nanos", nanos);
+		map.put("allocatedBytes", allocatedBytes);
+		map.put("inputBytes", inputBytes);
+		map.put("outputBytes", outputBytes);
+		LinkedHashMap<String, Object> phaseMaps = new LinkedHashMap<>();
+		for (Map.Entry<String, Phase> e : phaseTotals.entrySet()) {
+			phaseMaps.put(e.getKey(), e.getValue().toMap());
+		}
+		map.put("phases", phaseMaps);
+		return map;
+	}
+
+	// Sums byte counts, where -1 (unknown) in either makes the sum unknown
+	private static long addKnown(long a, long b) {
+		return (a < 0 || b < 0) ? -1 : a + b;
+	}
+
+	// Percentiles of each spec's total time and of the time of each phase,
+	// over the specs that ran that phase
+	private Map<String, Object> percentiles() {
+		LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+
+		long[] totals = new long[specs.size()];
+		for (int i = 0; i < totals.length; ++i) {
+			totals[i] = specs.get(i).totalNanos();
+		}
+		map.put("nanos", percentilesOf(totals));
+
+		for (String phase : SPEC_PHASES) {
+			long[] values = new long[specs.size()];
+			int n = 0;
+			for (Spec spec : specs) {
+				Phase p = spec.phases.get(phase);
+				if (p != null) {
+					values[n++] = p.nanos;
+				}
+			}
+			if (n > 0) {
+				map.put(phase + "Nanos", percentilesOf(Arrays.copyOf(values, n)));
+			}
+		}
+		return map;
+	}
+
+	// Nearest-rank percentiles
+	private static Map<String, Object> percentilesOf(long[] values) {
+		Arrays.sort(values);
+		LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+		map.put("p50", values[rank(50, values.length)]);
+		map.put("p90", values[rank(90, values.length)]);
+		map.put("p99", values[rank(99, values.length)]);
+		map.put("max", values[values.length - 1]);
+		return map;
+	}
+
+	private static int rank(int percentile, int count) {
+		return Math.max(0, (int) Math.ceil(percentile / 100.0 * count) - 1);
+	}
+
+	private List<Map<String, Object>> slowest(int limit) {
+		ArrayList<Spec> sorted = new ArrayList<>(specs);
+		Collections.sort(sorted, new Comparator<Spec>() {
+			@Override
+			public int compare(Spec a, Spec b) {
+				return Long.compare(b.totalNanos(), a.totalNanos());
+			}
+		});
+
+		ArrayList<Map<String, Object>> result = new ArrayList<>();
+		for (Spec spec : sorted.subList(0, Math.min(limit, sorted.size()))) {
+			LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+			map.put("spec", spec.name);
+			map.put("nanos", spec.totalNanos());
+			result.add(map);
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the report to the given file, or to stderr if the path is
+	 * {@code -}.
+	 */
+	void writeTo(Path path) throws IOException {
+		String json = toJson();
+		if ("-".equals(path.toString())) {
+			System.err.println(json);
+		} else {
+			Path parent = path.toAbsolutePath().getParent();
+			if (parent != null) {
+				Files.createDirectories(parent);
+			}
+			Files.write(path, (json + "\n").getBytes("UTF-8"));
+		}
+	}
+
+	/**
+	 * An input stream that counts the bytes read through it.
+	 */
+	static final class CountingInputStream extends FilterInputStream {
+		private long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				++count;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * An output stream that counts the bytes written through it.
+	 */
+	static final class CountingOutputStream extends FilterOutputStream {
+		private long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			++count;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+}
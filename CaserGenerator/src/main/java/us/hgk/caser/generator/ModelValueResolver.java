@@ -0,0 +1,58 @@
+package us.hgk.caser.generator;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import com.github.jknack.handlebars.Context;
+import com.github.jknack.handlebars.ValueResolver;
+import com.github.jknack.handlebars.context.JavaBeanValueResolver;
+import com.github.jknack.handlebars.context.MapValueResolver;
+
+/**
+ * Resolves template expressions against the {@link ResolvedModels} classes by
+ * asking the object itself, through {@link ResolvedModels.Model#property},
+ * rather than by reflection. Each of those classes reads its properties with
+ * a {@code switch} on the name, so resolving one costs about a hash lookup.
+ * <p>
+ * Anything else, such as the strings in a list of thrown types, is left to
+ * the resolvers Handlebars would otherwise use.
+ */
+final class ModelValueResolver implements ValueResolver {
+	static final ModelValueResolver INSTANCE = new ModelValueResolver();
+
+	private static final ValueResolver[] RESOLVERS = { INSTANCE, MapValueResolver.INSTANCE,
+			JavaBeanValueResolver.INSTANCE };
+
+	/**
+	 * Returns a new root context for the given model that resolves
+	 * expressions with this resolver before the default ones. Contexts
+	 * created from it inherit its resolvers.
+	 */
+	static Context newContext(Object model) {
+		return Context.newBuilder(model).resolver(RESOLVERS).build();
+	}
+
+	private ModelValueResolver() {
+	}
+
+	@Override
+	public Object resolve(Object context, String name) {
+		if (context instanceof ResolvedModels.Model) {
+			return ((ResolvedModels.Model) context).property(name);
+		}
+		return UNRESOLVED;
+	}
+
+	@Override
+	public Object resolve(Object context) {
+		return UNRESOLVED;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> propertySet(Object context) {
+		// Only needed to iterate over the properties of an object, which the
+		// templates do not do; the JavaBean resolver that follows lists them
+		return Collections.emptySet();
+	}
+}
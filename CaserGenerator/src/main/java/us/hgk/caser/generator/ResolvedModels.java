@@ -0,0 +1,635 @@
+package us.hgk.caser.generator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import com.github.jknack.handlebars.ValueResolver;
+
+/**
+ * The form of a union spec that templates are rendered against: validated,
+ * fixed up, and with every property that a template reads computed in
+ * advance. Unlike the mapped {@link ConfigModels}, these objects cannot be
+ * changed once created, so one may be rendered by several threads at once,
+ * and reading a property only returns a field.
+ */
+public class ResolvedModels {
+
+	/**
+	 * Validates the given union spec, which must already have been fixed up,
+	 * and returns its resolved form. The spec is not modified.
+	 */
+	static Union resolve(ConfigModels.Union unionSpec) {
+		if (unionSpec.getName() == null) {
+			throw new RuntimeException("Union spec has no name");
+		}
+		return new Union(unionSpec);
+	}
+
+	/**
+	 * Implemented by each resolved class so that {@link ModelValueResolver}
+	 * can read its properties by name without reflection.
+	 */
+	interface Model {
+		/**
+		 * Returns the value of the named property, as its getter would, or
+		 * {@link ValueResolver#UNRESOLVED} if there is no such property.
+		 */
+		Object property(String property);
+	}
+
+	// Copies the given array into an unmodifiable list, empty for null
+	private static <T> List<T> listOf(T[] items) {
+		if (items == null || items.length == 0) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(new ArrayList<>(Arrays.asList(items)));
+	}
+
+	public static final class Union implements Model {
+		private final String packageName;
+		private final String name;
+		private final String doc;
+		private final String modifiers;
+		private final List<Case> cases;
+		private final List<Handler> handlers;
+		private final boolean identityEquality;
+		private final boolean intern;
+		private final boolean binarySerialization;
+		private final boolean column;
+		private final boolean ringBuffer;
+		private final boolean splitOutput;
+		private final ConfigModels.Target target;
+		private final String columnTagType;
+		private final String columnTagMask;
+		private final boolean recursive;
+		private final boolean anyCaseInterned;
+		private final boolean anyColumnCastNeeded;
+
+		private Union(ConfigModels.Union spec) {
+			packageName = spec.getPackageName();
+			name = spec.getName();
+			doc = spec.getDoc();
+			modifiers = spec.getModifiers();
+			identityEquality = spec.getIdentityEquality();
+			intern = spec.getIntern();
+			binarySerialization = spec.getBinarySerialization();
+			column = spec.getColumn();
+			ringBuffer = spec.getRingBuffer();
+			splitOutput = spec.getSplitOutput();
+			target = (spec.getTarget() == null) ? ConfigModels.Target.JAVA7
+					: ConfigModels.Target.forLabel(spec.getTarget());
+			if (target == null) {
+				throw new RuntimeException("Union " + name + " has unknown target " + spec.getTarget()
+						+ "; expected one of " + ConfigModels.Target.labels());
+			}
+			columnTagType = spec.getColumnTagType();
+			columnTagMask = spec.getColumnTagMask();
+			recursive = spec.getRecursive();
+			anyCaseInterned = spec.getAnyCaseInterned();
+			anyColumnCastNeeded = spec.getAnyColumnCastNeeded();
+
+			ArrayList<Case> resolvedCases = new ArrayList<>();
+			HashSet<String> caseNames = new HashSet<>();
+			if (spec.getCases() != null) {
+				for (ConfigModels.Case c : spec.getCases()) {
+					if (c.getName() == null) {
+						throw new RuntimeException("A case of union " + name + " has no name");
+					}
+					if (!caseNames.add(c.getName())) {
+						throw new RuntimeException("Union " + name + " has more than one case named " + c.getName());
+					}
+					resolvedCases.add(new Case(c));
+				}
+			}
+			cases = Collections.unmodifiableList(resolvedCases);
+
+			ArrayList<Handler> resolvedHandlers = new ArrayList<>();
+			HashSet<String> handlerNames = new HashSet<>();
+			if (spec.getHandlers() != null) {
+				for (ConfigModels.Handler h : spec.getHandlers()) {
+					if (h.getName() == null) {
+						throw new RuntimeException("A handler of union " + name + " has no name");
+					}
+					if (!handlerNames.add(h.getName())) {
+						throw new RuntimeException("Union " + name + " has more than one handler named " + h.getName());
+					}
+					resolvedHandlers.add(new Handler(h));
+				}
+			}
+			handlers = Collections.unmodifiableList(resolvedHandlers);
+		}
+
+		public String getPackageName() {
+			return packageName;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDoc() {
+			return doc;
+		}
+
+		public String getModifiers() {
+			return modifiers;
+		}
+
+		public List<Case> getCases() {
+			return cases;
+		}
+
+		public List<Handler> getHandlers() {
+			return handlers;
+		}
+
+		public boolean getIdentityEquality() {
+			return identityEquality;
+		}
+
+		public boolean getIntern() {
+			return intern;
+		}
+
+		public boolean getBinarySerialization() {
+			return binarySerialization;
+		}
+
+		public boolean getColumn() {
+			return column;
+		}
+
+		public boolean getRingBuffer() {
+			return ringBuffer;
+		}
+
+		public boolean getSplitOutput() {
+			return splitOutput;
+		}
+
+		public ConfigModels.Target getTarget() {
+			return target;
+		}
+
+		public String getColumnTagType() {
+			return columnTagType;
+		}
+
+		public String getColumnTagMask() {
+			return columnTagMask;
+		}
+
+		public boolean getRecursive() {
+			return recursive;
+		}
+
+		public boolean getAnyCaseInterned() {
+			return anyCaseInterned;
+		}
+
+		public boolean getAnyColumnCastNeeded() {
+			return anyColumnCastNeeded;
+		}
+
+		@Override
+		public Object property(String property) {
+			switch (property) {
+			case "packageName":
+				return packageName;
+			case "name":
+				return name;
+			case "doc":
+				return doc;
+			case "modifiers":
+				return modifiers;
+			case "cases":
+				return cases;
+			case "handlers":
+				return handlers;
+			case "identityEquality":
+				return identityEquality;
+			case "intern":
+				return intern;
+			case "binarySerialization":
+				return binarySerialization;
+			case "column":
+				return column;
+			case "ringBuffer":
+				return ringBuffer;
+			case "splitOutput":
+				return splitOutput;
+			case "target":
+				return target;
+			case "columnTagType":
+				return columnTagType;
+			case "columnTagMask":
+				return columnTagMask;
+			case "recursive":
+				return recursive;
+			case "anyCaseInterned":
+				return anyCaseInterned;
+			case "anyColumnCastNeeded":
+				return anyColumnCastNeeded;
+			default:
+				return ValueResolver.UNRESOLVED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Union [packageName=" + packageName + ", name=" + name + ", cases=" + cases + ", handlers="
+					+ handlers + "]";
+		}
+	}
+
+	public static final class Case implements Model {
+		private final String name;
+		private final String doc;
+		private final List<Parameter> parameters;
+		private final boolean intern;
+		private final int recursiveParameterCount;
+		private final boolean recursive;
+
+		private Case(ConfigModels.Case spec) {
+			name = spec.getName();
+			doc = spec.getDoc();
+			intern = Boolean.TRUE.equals(spec.getIntern());
+			recursiveParameterCount = spec.getRecursiveParameterCount();
+			recursive = spec.getRecursive();
+
+			ArrayList<Parameter> resolvedParameters = new ArrayList<>();
+			HashSet<String> parameterNames = new HashSet<>();
+			if (spec.getParameters() != null) {
+				for (ConfigModels.Parameter p : spec.getParameters()) {
+					if (p.getName() == null) {
+						throw new RuntimeException("A parameter of case " + name + " has no name");
+					}
+					if (p.getType() == null) {
+						throw new RuntimeException("Parameter " + name + "." + p.getName() + " has no type");
+					}
+					if (!parameterNames.add(p.getName())) {
+						throw new RuntimeException("Case " + name + " has more than one parameter named " + p.getName());
+					}
+					resolvedParameters.add(new Parameter(p));
+				}
+			}
+			parameters = Collections.unmodifiableList(resolvedParameters);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDoc() {
+			return doc;
+		}
+
+		public List<Parameter> getParameters() {
+			return parameters;
+		}
+
+		public boolean getIntern() {
+			return intern;
+		}
+
+		public int getRecursiveParameterCount() {
+			return recursiveParameterCount;
+		}
+
+		public boolean getRecursive() {
+			return recursive;
+		}
+
+		@Override
+		public Object property(String property) {
+			switch (property) {
+			case "name":
+				return name;
+			case "doc":
+				return doc;
+			case "parameters":
+				return parameters;
+			case "intern":
+				return intern;
+			case "recursiveParameterCount":
+				return recursiveParameterCount;
+			case "recursive":
+				return recursive;
+			default:
+				return ValueResolver.UNRESOLVED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Case [name=" + name + ", parameters=" + parameters + "]";
+		}
+	}
+
+	public static final class Parameter implements Model {
+		private final String name;
+		private final String type;
+		private final String doc;
+		private final boolean recursive;
+		private final int recursiveIndex;
+		private final String binaryCodecType;
+		private final String sampleExpression;
+		private final boolean primitive;
+		private final String columnStorageType;
+		private final boolean columnCastNeeded;
+		private final String equalsExpression;
+		private final String hashCodeExpression;
+		private final String appendArgument;
+		private final String componentEqualsExpression;
+		private final String componentHashCodeExpression;
+		private final String componentAppendArgument;
+
+		private Parameter(ConfigModels.Parameter spec) {
+			name = spec.getName();
+			type = spec.getType();
+			doc = spec.getDoc();
+			recursive = spec.getRecursive();
+			recursiveIndex = spec.getRecursiveIndex();
+			binaryCodecType = spec.getBinaryCodecType();
+			sampleExpression = spec.getSampleExpression();
+			primitive = spec.getPrimitive();
+			columnStorageType = spec.getColumnStorageType();
+			columnCastNeeded = spec.getColumnCastNeeded();
+			equalsExpression = spec.getEqualsExpression();
+			hashCodeExpression = spec.getHashCodeExpression();
+			appendArgument = spec.getAppendArgument();
+			componentEqualsExpression = spec.getComponentEqualsExpression();
+			componentHashCodeExpression = spec.getComponentHashCodeExpression();
+			componentAppendArgument = spec.getComponentAppendArgument();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getDoc() {
+			return doc;
+		}
+
+		public boolean getRecursive() {
+			return recursive;
+		}
+
+		public int getRecursiveIndex() {
+			return recursiveIndex;
+		}
+
+		public String getBinaryCodecType() {
+			return binaryCodecType;
+		}
+
+		public String getSampleExpression() {
+			return sampleExpression;
+		}
+
+		public boolean getPrimitive() {
+			return primitive;
+		}
+
+		public String getColumnStorageType() {
+			return columnStorageType;
+		}
+
+		public boolean getColumnCastNeeded() {
+			return columnCastNeeded;
+		}
+
+		public String getEqualsExpression() {
+			return equalsExpression;
+		}
+
+		public String getHashCodeExpression() {
+			return hashCodeExpression;
+		}
+
+		public String getAppendArgument() {
+			return appendArgument;
+		}
+
+		public String getComponentEqualsExpression() {
+			return componentEqualsExpression;
+		}
+
+		public String getComponentHashCodeExpression() {
+			return componentHashCodeExpression;
+		}
+
+		public String getComponentAppendArgument() {
+			return componentAppendArgument;
+		}
+
+		@Override
+		public Object property(String property) {
+			switch (property) {
+			case "name":
+				return name;
+			case "type":
+				return type;
+			case "doc":
+				return doc;
+			case "recursive":
+				return recursive;
+			case "recursiveIndex":
+				return recursiveIndex;
+			case "binaryCodecType":
+				return binaryCodecType;
+			case "sampleExpression":
+				return sampleExpression;
+			case "primitive":
+				return primitive;
+			case "columnStorageType":
+				return columnStorageType;
+			case "columnCastNeeded":
+				return columnCastNeeded;
+			case "equalsExpression":
+				return equalsExpression;
+			case "hashCodeExpression":
+				return hashCodeExpression;
+			case "appendArgument":
+				return appendArgument;
+			case "componentEqualsExpression":
+				return componentEqualsExpression;
+			case "componentHashCodeExpression":
+				return componentHashCodeExpression;
+			case "componentAppendArgument":
+				return componentAppendArgument;
+			default:
+				return ValueResolver.UNRESOLVED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Parameter [name=" + name + ", type=" + type + "]";
+		}
+	}
+
+	public static final class Handler implements Model {
+		private final String name;
+		private final String doc;
+		private final String returns;
+		private final boolean returnsGeneric;
+		private final boolean returnsVoid;
+		private final boolean returnsPrimitive;
+		private final boolean returnsObject;
+		private final boolean returnsValue;
+		private final List<String> throws_;
+		private final List<EnglishListItem> throwsInEnglish;
+		private final String default_;
+
+		private Handler(ConfigModels.Handler spec) {
+			name = spec.getName();
+			doc = spec.getDoc();
+			returns = spec.getReturns();
+			returnsGeneric = spec.getReturnsGeneric();
+			returnsVoid = spec.getReturnsVoid();
+			returnsPrimitive = spec.getReturnsPrimitive();
+			returnsObject = spec.getReturnsObject();
+			returnsValue = spec.getReturnsValue();
+			throws_ = listOf(spec.getThrows());
+			default_ = spec.getDefault();
+
+			ArrayList<EnglishListItem> items = new ArrayList<>();
+			ConfigModels.EnglishListItem[] specItems = spec.getThrowsInEnglish();
+			if (specItems != null) {
+				for (ConfigModels.EnglishListItem item : specItems) {
+					items.add(new EnglishListItem(item));
+				}
+			}
+			throwsInEnglish = Collections.unmodifiableList(items);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getDoc() {
+			return doc;
+		}
+
+		public String getReturns() {
+			return returns;
+		}
+
+		public boolean getReturnsGeneric() {
+			return returnsGeneric;
+		}
+
+		public boolean getReturnsVoid() {
+			return returnsVoid;
+		}
+
+		public boolean getReturnsPrimitive() {
+			return returnsPrimitive;
+		}
+
+		public boolean getReturnsObject() {
+			return returnsObject;
+		}
+
+		public boolean getReturnsValue() {
+			return returnsValue;
+		}
+
+		public List<String> getThrows() {
+			return throws_;
+		}
+
+		public List<EnglishListItem> getThrowsInEnglish() {
+			return throwsInEnglish;
+		}
+
+		public String getDefault() {
+			return default_;
+		}
+
+		@Override
+		public Object property(String property) {
+			switch (property) {
+			case "name":
+				return name;
+			case "doc":
+				return doc;
+			case "returns":
+				return returns;
+			case "returnsGeneric":
+				return returnsGeneric;
+			case "returnsVoid":
+				return returnsVoid;
+			case "returnsPrimitive":
+				return returnsPrimitive;
+			case "returnsObject":
+				return returnsObject;
+			case "returnsValue":
+				return returnsValue;
+			case "throws":
+				return throws_;
+			case "throwsInEnglish":
+				return throwsInEnglish;
+			case "default":
+				return default_;
+			default:
+				return ValueResolver.UNRESOLVED;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Handler [name=" + name + ", returns=" + returns + ", throws=" + throws_ + "]";
+		}
+	}
+
+	public static final class EnglishListItem implements Model {
+		private final String prefix;
+		private final String phrase;
+		private final String suffix;
+
+		private EnglishListItem(ConfigModels.EnglishListItem spec) {
+			prefix = spec.getPrefix();
+			phrase = spec.getPhrase();
+			suffix = spec.getSuffix();
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public String getPhrase() {
+			return phrase;
+		}
+
+		public String getSuffix() {
+			return suffix;
+		}
+
+		@Override
+		public Object property(String property) {
+			switch (property) {
+			case "prefix":
+				return prefix;
+			case "phrase":
+				return phrase;
+			case "suffix":
+				return suffix;
+			default:
+				return ValueResolver.UNRESOLVED;
+			}
+		}
+	}
+
+	// Prevent instantiation
+	private ResolvedModels() {
+	}
+}
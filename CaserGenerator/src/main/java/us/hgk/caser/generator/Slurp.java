@@ -126,19 +126,22 @@ class Slurp {
 	 *             If an I/O error occurs while reading
 	 */
 	public static char[] slurpCharArray(Reader reader) throws IOException {
-		ArrayList<char[]> buffers = new ArrayList<>();
+		char[] result = new char[SLURP_BUFFER_SIZE_CHARS];
+		int length = 0;
 
+		// Reads directly into the result, growing it geometrically as needed
 		for (;;) {
-			char[] buffer = new char[SLURP_BUFFER_SIZE_CHARS];
-			int n = reader.read(buffer);
+			if (length == result.length) {
+				result = Arrays.copyOf(result, result.length << 1);
+			}
+			int n = reader.read(result, length, result.length - length);
 			if (n < 0) {
 				break;
-			} else if (n > 0) {
-				buffers.add(n < buffer.length ? Arrays.copyOf(buffer, n) : buffer);
 			}
+			length += n;
 		}
 
-		return concatCharArrays(buffers);
+		return (length == result.length) ? result : Arrays.copyOf(result, length);
 	}
 
 	/**
@@ -152,19 +155,22 @@ class Slurp {
 	 *             If an I/O error occurs while reading
 	 */
 	public static byte[] slurpByteArray(InputStream stream) throws IOException {
-		ArrayList<byte[]> buffers = new ArrayList<>();
+		byte[] result = new byte[SLURP_BUFFER_SIZE_BYTES];
+		int length = 0;
 
+		// Reads directly into the result, growing it geometrically as needed
 		for (;;) {
-			byte[] buffer = new byte[SLURP_BUFFER_SIZE_BYTES];
-			int n = stream.read(buffer);
+			if (length == result.length) {
+				result = Arrays.copyOf(result, result.length << 1);
+			}
+			int n = stream.read(result, length, result.length - length);
 			if (n < 0) {
 				break;
-			} else if (n > 0) {
-				buffers.add(n < buffer.length ? Arrays.copyOf(buffer, n) : buffer);
 			}
+			length += n;
 		}
 
-		return concatByteArrays(buffers);
+		return (length == result.length) ? result : Arrays.copyOf(result, length);
 	}
 
 	/**
@@ -178,7 +184,18 @@ class Slurp {
 	 *             If an I/O error occurs while reading
 	 */
 	public static String slurpString(Reader reader) throws IOException {
-		return String.valueOf(slurpCharArray(reader));
+		StringBuilder sb = new StringBuilder(SLURP_BUFFER_SIZE_CHARS);
+		char[] buffer = new char[SLURP_BUFFER_SIZE_CHARS];
+
+		for (;;) {
+			int n = reader.read(buffer);
+			if (n < 0) {
+				break;
+			}
+			sb.append(buffer, 0, n);
+		}
+
+		return sb.toString();
 	}
 
 	/**
@@ -0,0 +1,202 @@
+package us.hgk.caser.generator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.jknack.handlebars.Handlebars;
+import com.github.jknack.handlebars.Template;
+
+import us.hgk.caser.generator.ConfigModels.Target;
+
+/**
+ * Loads and compiles the templates used to generate unions.
+ * <p>
+ * The built-in templates, one for each {@link Target}, are embedded into
+ * {@link BuiltinTemplates} at build time, so using them requires no classpath
+ * lookup or decoding; each is compiled at most once per JVM, when first used.
+ * A custom template supplied by the user is read from its file and compiled
+ * inline, and is used whatever the target.
+ */
+final class Templates {
+	private static final Logger log = LoggerFactory.getLogger(Templates.class);
+
+	private static final Charset UTF8 = Charset.forName("utf-8");
+
+	static final String CASE_CLASS = "case-class.java";
+	static final String CASE_RECORD = "case-record.java";
+	static final String BENCHMARK = "benchmark.java";
+	static final String HANDLER_BASE = "handler-base.java";
+	static final String CASE_BASE = "case-base.java";
+
+	/**
+	 * A template together with the source from which it was compiled.
+	 */
+	static final class Loaded {
+		private final String description;
+		private final String source;
+		private final Template template;
+		private final Target target;
+
+		private Loaded(String description, String source, Template template, Target target) {
+			this.description = description;
+			this.source = source;
+			this.template = template;
+			this.target = target;
+		}
+
+		String getDescription() {
+			return description;
+		}
+
+		String getSource() {
+			return source;
+		}
+
+		Template getTemplate() {
+			return template;
+		}
+
+		/**
+		 * Returns the target for which this built-in template generates a
+		 * union, or {@code null} for a custom template or one that does not
+		 * generate the union itself.
+		 */
+		Target getTarget() {
+			return target;
+		}
+	}
+
+	// Initialized on first use, so the built-in template is compiled only if
+	// it is needed and then only once
+	private static final class Builtin {
+		static final Loaded CASE_CLASS_TEMPLATE = compileBuiltin(CASE_CLASS, Target.JAVA7);
+	}
+
+	// Likewise for the template of the java17 target
+	private static final class BuiltinRecord {
+		static final Loaded CASE_RECORD_TEMPLATE = compileBuiltin(CASE_RECORD, Target.JAVA17);
+	}
+
+	// Likewise for the benchmark template, which most runs do not use
+	private static final class BuiltinBenchmark {
+		static final Loaded BENCHMARK_TEMPLATE = compileBuiltin(BENCHMARK, null);
+	}
+
+	// Likewise for the templates of split output, used only by specs that
+	// ask for it
+	private static final class BuiltinSplit {
+		static final Loaded HANDLER_BASE_TEMPLATE = compileBuiltin(HANDLER_BASE, null);
+		static final Loaded CASE_BASE_TEMPLATE = compileBuiltin(CASE_BASE, null);
+	}
+
+	/**
+	 * Returns the built-in template for the default target, {@code java7}.
+	 */
+	static Loaded builtin() {
+		return Builtin.CASE_CLASS_TEMPLATE;
+	}
+
+	/**
+	 * Returns the built-in template for the given target.
+	 */
+	static Loaded builtin(Target target) {
+		switch (target) {
+		case JAVA17:
+			return BuiltinRecord.CASE_RECORD_TEMPLATE;
+		default:
+			return builtin();
+		}
+	}
+
+	/**
+	 * Returns the template with which to generate a union for the given
+	 * target: the given template if it is custom or already for that target,
+	 * and otherwise the built-in template for the target.
+	 */
+	static Loaded forTarget(Loaded template, Target target) {
+		if (template.getTarget() == null || template.getTarget() == target) {
+			return template;
+		}
+		return builtin(target);
+	}
+
+	/**
+	 * Returns the built-in template for JMH benchmark classes.
+	 */
+	static Loaded benchmark() {
+		return BuiltinBenchmark.BENCHMARK_TEMPLATE;
+	}
+
+	/**
+	 * Returns the built-in template for the base of a handler class in split
+	 * output, which is applied to a handler in the context of its union.
+	 */
+	static Loaded handlerBase() {
+		return BuiltinSplit.HANDLER_BASE_TEMPLATE;
+	}
+
+	/**
+	 * Returns the built-in template for the base of a case class in split
+	 * output, which is applied to a case in the context of its union.
+	 */
+	static Loaded caseBase() {
+		return BuiltinSplit.CASE_BASE_TEMPLATE;
+	}
+
+	/**
+	 * Returns the template at the given path, or if the path is {@code null},
+	 * the built-in template for the given target, or for the default target
+	 * if that is also {@code null}.
+	 */
+	static Loaded load(Path customTemplate, Target target) {
+		if (customTemplate == null) {
+			return (target == null) ? builtin() : builtin(target);
+		}
+
+		log.info("Loading custom template from " + customTemplate);
+		String source = readCustomTemplate(customTemplate);
+		return new Loaded(customTemplate.toString(), source, compile(source), null);
+	}
+
+	private static Loaded compileBuiltin(String name, Target target) {
+		String source = BuiltinTemplates.source(name);
+
+		if (source == null) {
+			throw new RuntimeException("Built-in template not available: " + name);
+		}
+
+		log.info("Compiling built-in template " + name);
+		return new Loaded("built-in " + name, source, compile(source), target);
+	}
+
+	private static Template compile(String templateSource) {
+		Handlebars handlebars = new Handlebars();
+		handlebars.registerHelper(Fragments.NAME, Fragments.INSTANCE);
+
+		try {
+			return handlebars.compileInline(templateSource);
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to parse template: " + e.getMessage(), e);
+		}
+	}
+
+	private static String readCustomTemplate(Path path) {
+		InputStream stream;
+		try {
+			stream = Files.newInputStream(path);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open template " + path + ": " + e.getMessage(), e);
+		}
+		return Command.slurpStreamAndCloseLoggingOnError(stream, UTF8, "template " + path);
+	}
+
+	// Prevent instantiation
+	private Templates() {
+	}
+}
@@ -0,0 +1,220 @@
+package us.hgk.caser.generator;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the generator running, regenerating specs as they change.
+ * <p>
+ * The compiled template and the YAML mapper stay resident (and JIT-warm)
+ * between changes, so each regeneration pays only for parsing, fixing up and
+ * rendering the specs that actually changed. Events arriving in a burst, such
+ * as those from an editor saving a file, are coalesced: after the first event,
+ * further events are collected until none has arrived for
+ * {@link #DEBOUNCE_MILLIS}.
+ */
+final class Watch {
+	private static final Logger log = LoggerFactory.getLogger(Watch.class);
+
+	static final long DEBOUNCE_MILLIS = 50;
+
+	private final Batch batch;
+	private final Set<Path> specFiles = new HashSet<>();
+	private final List<Path> specDirs = new ArrayList<>();
+	private final Map<WatchKey, Path> keyDirs = new HashMap<>();
+	private WatchService watcher;
+
+	/**
+	 * @param batch
+	 *            The batch with which changed specs are regenerated
+	 * @param specPaths
+	 *            The spec files and directories to watch, as given on the
+	 *            command line
+	 */
+	Watch(Batch batch, List<Path> specPaths) {
+		this.batch = batch;
+
+		for (Path path : specPaths) {
+			Path normalized = path.toAbsolutePath().normalize();
+			if (Files.isDirectory(normalized)) {
+				specDirs.add(normalized);
+			} else {
+				specFiles.add(normalized);
+			}
+		}
+	}
+
+	/**
+	 * Watches for changes until interrupted.
+	 */
+	void run() throws IOException, InterruptedException {
+		try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+			watcher = watchService;
+
+			for (Path file : specFiles) {
+				register(file.getParent());
+			}
+			for (Path dir : specDirs) {
+				registerAll(dir);
+			}
+
+			log.info("Watching " + keyDirs.size() + " directories for changes to union specs");
+
+			for (;;) {
+				TreeSet<Path> changed = new TreeSet<>();
+				WatchKey key = watcher.take();
+				boolean overflowed = collect(key, changed);
+
+				while ((key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+					overflowed |= collect(key, changed);
+				}
+
+				List<Path> toGenerate;
+				if (overflowed) {
+					log.warn("Some change events were lost; regenerating all watched specs");
+					ArrayList<Path> all = new ArrayList<>(specFiles);
+					all.addAll(specDirs);
+					toGenerate = Batch.findSpecs(all);
+				} else {
+					toGenerate = new ArrayList<>(changed);
+				}
+
+				if (!toGenerate.isEmpty()) {
+					regenerate(toGenerate);
+				}
+			}
+		} finally {
+			watcher = null;
+			keyDirs.clear();
+		}
+	}
+
+	// Regenerates the given specs. A failure of the batch as a whole, such as
+	// being unable to save the manifest, is logged rather than thrown, so
+	// that one bad cycle does not end the watch.
+	private void regenerate(List<Path> specs) {
+		long start = System.nanoTime();
+		List<Batch.Outcome> outcomes;
+		try {
+			outcomes = batch.run(specs);
+		} catch (RuntimeException e) {
+			// If interrupted, the flag is still set, and the next wait for
+			// events ends the watch
+			if (!Thread.currentThread().isInterrupted()) {
+				log.error("Error regenerating changed spec(s); still watching: " + e.getMessage(), e);
+			}
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		Batch.logSummary(outcomes);
+		log.info(String.format("Regenerated %d changed spec(s) in %.3f ms", outcomes.size(), elapsed / 1e6));
+	}
+
+	// Adds the specs affected by the key's pending events to changed, and
+	// returns whether any events were lost
+	private boolean collect(WatchKey key, Set<Path> changed) throws IOException {
+		Path dir = keyDirs.get(key);
+		boolean overflowed = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW) {
+				overflowed = true;
+				continue;
+			}
+			if (dir == null) {
+				continue;
+			}
+
+			Path path = dir.resolve((Path) event.context());
+
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(path) && isUnderSpecDir(path)) {
+				registerAll(path);
+				changed.addAll(Batch.findSpecs(Collections.singletonList(path)));
+			} else if (isWatchedSpec(path) && Files.isRegularFile(path)) {
+				changed.add(path);
+			}
+		}
+
+		if (!key.reset()) {
+			keyDirs.remove(key);
+		}
+
+		return overflowed;
+	}
+
+	private boolean isWatchedSpec(Path path) {
+		return specFiles.contains(path) || (Batch.isSpecFileName(path) && isUnderSpecDir(path));
+	}
+
+	private boolean isUnderSpecDir(Path path) {
+		for (Path dir : specDirs) {
+			if (path.startsWith(dir)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void register(Path dir) throws IOException {
+		if (!keyDirs.containsValue(dir)) {
+			keyDirs.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY), dir);
+		}
+	}
+
+	// Registers root and the directories under it. A directory deleted before
+	// it could be registered, such as an editor's or git's temporary
+	// directory, is skipped along with anything under it.
+	private void registerAll(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				try {
+					register(dir);
+				} catch (NoSuchFileException e) {
+					logVanished(dir);
+					return FileVisitResult.SKIP_SUBTREE;
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+				if (exc instanceof NoSuchFileException) {
+					logVanished(file);
+					return FileVisitResult.CONTINUE;
+				}
+				throw exc;
+			}
+		});
+	}
+
+	private static void logVanished(Path path) {
+		log.debug("Not watching " + path + ", which was deleted before it could be registered");
+	}
+}
@@ -0,0 +1,143 @@
+package us.hgk.caser.generated;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import org.junit.Test;
+
+/**
+ * Tests {@code writeTo(...)} and {@code readFrom(...)}, generated for a union
+ * with {@code binarySerialization: true}.
+ */
+public class BinarySerializationTest {
+	// Deeper than any thread's default stack allows recursion to go
+	private static final int DEEP = 200000;
+
+	private static byte[] write(Expr value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		value.writeTo(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static Expr read(byte[] bytes) throws IOException {
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		Expr value = Expr.readFrom(new DataInputStream(in));
+		assertEquals("Bytes left unread", 0, in.available());
+		return value;
+	}
+
+	private static Expr roundTrip(Expr value) throws IOException {
+		byte[] bytes = write(value);
+		Expr copy = read(bytes);
+		assertEquals(value, copy);
+		// Equal values are encoded alike
+		assertArrayEquals(bytes, write(copy));
+		return copy;
+	}
+
+	@Test
+	public void roundTripsNullParameters() throws IOException {
+		Expr.Cases.Str str = (Expr.Cases.Str) roundTrip(Expr.Cases.Str.of(null));
+		assertNull(str.value());
+
+		Expr.Cases.Neg neg = (Expr.Cases.Neg) roundTrip(Expr.Cases.Neg.of(null));
+		assertNull(neg.operand());
+
+		Expr.Cases.Pair pair = (Expr.Cases.Pair) roundTrip(Expr.Cases.Pair.of(null, null, null));
+		assertNull(pair.first());
+		assertNull(pair.label());
+		assertNull(pair.second());
+
+		roundTrip(Expr.Cases.Pair.of(Expr.Cases.Str.of(null), null, Expr.Cases.Neg.of(null)));
+	}
+
+	@Test
+	public void readsSingletonsAsTheSingleInstance() throws IOException {
+		assertSame(Expr.Cases.Nil.of(), roundTrip(Expr.Cases.Nil.of()));
+
+		Expr.Cases.Pair pair = (Expr.Cases.Pair) roundTrip(
+				Expr.Cases.Pair.of(Expr.Cases.Nil.of(), "both", Expr.Cases.Neg.of(Expr.Cases.Nil.of())));
+		assertSame(Expr.Cases.Nil.of(), pair.first());
+		assertSame(Expr.Cases.Nil.of(), ((Expr.Cases.Neg) pair.second()).operand());
+	}
+
+	@Test
+	public void roundTripsPrimitivesAndStrings() throws IOException {
+		roundTrip(Expr.Cases.Prims.of(false, (byte) 0, '\0', (short) 0, 0, 0L, 0f, 0d));
+		roundTrip(Expr.Cases.Prims.of(true, Byte.MIN_VALUE, Character.MAX_VALUE, Short.MIN_VALUE,
+				Integer.MIN_VALUE, Long.MIN_VALUE, Float.NaN, Double.NEGATIVE_INFINITY));
+		roundTrip(Expr.Cases.Prims.of(true, Byte.MAX_VALUE, 'x', Short.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE,
+				-0f, Double.MIN_VALUE));
+		roundTrip(Expr.Cases.Prims.of(false, (byte) -1, '\u00e9', (short) -1, -1, -1L, 1.5f, -2.25d));
+
+		roundTrip(Expr.Cases.Str.of(""));
+		roundTrip(Expr.Cases.Str.of("caf\u00e9 \u2603 \ud83d\ude00"));
+
+		// Longer than the chunk in which readString grows its buffer
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50000; ++i) {
+			sb.append((char) ('a' + i % 26)).append('\u00e9');
+		}
+		Expr.Cases.Str copy = (Expr.Cases.Str) roundTrip(Expr.Cases.Str.of(sb.toString()));
+		assertEquals(sb.toString(), copy.value());
+	}
+
+	@Test
+	public void roundTripsDeepValues() throws IOException {
+		Expr neg = Expr.Cases.Str.of("x");
+		for (int i = 0; i < DEEP; ++i) {
+			neg = Expr.Cases.Neg.of(neg);
+		}
+		roundTrip(neg);
+
+		Expr left = Expr.Cases.Nil.of();
+		Expr right = null;
+		for (int i = 0; i < DEEP; ++i) {
+			left = Expr.Cases.Pair.of(left, (i % 3 == 0) ? null : "l" + i, Expr.Cases.Str.of("s" + i));
+			right = Expr.Cases.Pair.of(null, "r", right);
+		}
+		roundTrip(left);
+		roundTrip(right);
+		roundTrip(Expr.Cases.Pair.of(left, "both", right));
+	}
+
+	@Test(expected = EOFException.class)
+	public void rejectsStringLongerThanInputWithoutAllocatingIt() throws IOException {
+		// One value, a Str whose length is 2^31 - 2 but which has no bytes
+		Expr.readFrom(new DataInputStream(new ByteArrayInputStream(
+				new byte[] { 1, 0, (byte) 0xfe, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 })));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsNegativeStringLength() throws IOException {
+		Expr.readFrom(new DataInputStream(new ByteArrayInputStream(
+				new byte[] { 1, 0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x0f })));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsUnknownTag() throws IOException {
+		Expr.readFrom(new DataInputStream(new ByteArrayInputStream(new byte[] { 1, 100 })));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void rejectsRecordMissingParameters() throws IOException {
+		byte[] bytes = write(Expr.Cases.Neg.of(Expr.Cases.Nil.of()));
+		// Drops the count and the Nil record, leaving a Neg with nothing to negate
+		byte[] truncated = new byte[bytes.length - 1];
+		truncated[0] = 1;
+		System.arraycopy(bytes, 2, truncated, 1, bytes.length - 2);
+		Expr.readFrom(new DataInputStream(new ByteArrayInputStream(truncated)));
+	}
+}
@@ -0,0 +1,197 @@
+package us.hgk.caser.generated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the iterative {@code fold(...)} generated for a recursive union,
+ * against plain recursion on small values and on values too deep for
+ * recursion.
+ */
+public class FoldTest {
+	// Deeper than any thread's default stack allows a recursive fold to go
+	private static final int DEEP = 200000;
+
+	// Renders a term in the usual notation; null parameters render as "null"
+	private static final Term.Folder<String> RENDER = new Term.Folder<String>() {
+		@Override
+		public String foldVar(Term.Cases.Var valueOfTerm, String name) {
+			return name;
+		}
+
+		@Override
+		public String foldFun(Term.Cases.Fun valueOfTerm, String arg, String body) {
+			return "\\" + arg + "." + body;
+		}
+
+		@Override
+		public String foldApp(Term.Cases.App valueOfTerm, String f, String v) {
+			return "(" + f + " " + v + ")";
+		}
+	};
+
+	private static String renderRecursively(Term term) {
+		if (term == null) {
+			return null;
+		} else if (term instanceof Term.Cases.Var) {
+			return ((Term.Cases.Var) term).name();
+		} else if (term instanceof Term.Cases.Fun) {
+			Term.Cases.Fun fun = (Term.Cases.Fun) term;
+			return "\\" + fun.arg() + "." + renderRecursively(fun.body());
+		}
+		Term.Cases.App app = (Term.Cases.App) term;
+		return "(" + renderRecursively(app.f()) + " " + renderRecursively(app.v()) + ")";
+	}
+
+	// The number of values on the longest path down from a term
+	private static final Term.Folder<Integer> DEPTH = new Term.Folder<Integer>() {
+		@Override
+		public Integer foldVar(Term.Cases.Var valueOfTerm, String name) {
+			return 1;
+		}
+
+		@Override
+		public Integer foldFun(Term.Cases.Fun valueOfTerm, String arg, Integer body) {
+			return 1 + depthOf(body);
+		}
+
+		@Override
+		public Integer foldApp(Term.Cases.App valueOfTerm, Integer f, Integer v) {
+			return 1 + Math.max(depthOf(f), depthOf(v));
+		}
+
+		private int depthOf(Integer result) {
+			return (result == null) ? 0 : result;
+		}
+	};
+
+	private static int depthRecursively(Term term) {
+		if (term == null) {
+			return 0;
+		} else if (term instanceof Term.Cases.Fun) {
+			return 1 + depthRecursively(((Term.Cases.Fun) term).body());
+		} else if (term instanceof Term.Cases.App) {
+			Term.Cases.App app = (Term.Cases.App) term;
+			return 1 + Math.max(depthRecursively(app.f()), depthRecursively(app.v()));
+		}
+		return 1;
+	}
+
+	// Numbers the values in the order they are folded, checking that each is
+	// folded once and only after the values it contains; the result for a
+	// value is its number
+	private static final class PostOrder implements Term.Folder<Integer> {
+		final IdentityHashMap<Term, Integer> folded = new IdentityHashMap<>();
+
+		private Integer next(Term value, Term... parameters) {
+			for (Term parameter : parameters) {
+				if (parameter != null) {
+					assertTrue("Parameter folded after the value containing it", folded.containsKey(parameter));
+				}
+			}
+			assertNull("Value folded twice", folded.put(value, folded.size()));
+			return folded.size() - 1;
+		}
+
+		@Override
+		public Integer foldVar(Term.Cases.Var valueOfTerm, String name) {
+			return next(valueOfTerm);
+		}
+
+		@Override
+		public Integer foldFun(Term.Cases.Fun valueOfTerm, String arg, Integer body) {
+			assertEquals(folded.get(valueOfTerm.body()), body);
+			return next(valueOfTerm, valueOfTerm.body());
+		}
+
+		@Override
+		public Integer foldApp(Term.Cases.App valueOfTerm, Integer f, Integer v) {
+			assertEquals(folded.get(valueOfTerm.f()), f);
+			assertEquals(folded.get(valueOfTerm.v()), v);
+			return next(valueOfTerm, valueOfTerm.f(), valueOfTerm.v());
+		}
+	}
+
+	private static int sizeRecursively(Term term) {
+		if (term == null) {
+			return 0;
+		} else if (term instanceof Term.Cases.Fun) {
+			return 1 + sizeRecursively(((Term.Cases.Fun) term).body());
+		} else if (term instanceof Term.Cases.App) {
+			Term.Cases.App app = (Term.Cases.App) term;
+			return 1 + sizeRecursively(app.f()) + sizeRecursively(app.v());
+		}
+		return 1;
+	}
+
+	private static Term randomTerm(Random random, int depth) {
+		int choice = (depth == 0) ? 0 : random.nextInt(8);
+		switch (choice) {
+		case 0:
+		case 1:
+			return Term.Cases.Var.of("x" + random.nextInt(4));
+		case 2:
+		case 3:
+			return Term.Cases.Fun.of("x" + random.nextInt(4), randomTermOrNull(random, depth - 1));
+		default:
+			return Term.Cases.App.of(randomTermOrNull(random, depth - 1), randomTermOrNull(random, depth - 1));
+		}
+	}
+
+	private static Term randomTermOrNull(Random random, int depth) {
+		return (random.nextInt(16) == 0) ? null : randomTerm(random, depth);
+	}
+
+	@Test
+	public void foldMatchesRecursionOnSmallValues() {
+		Random random = new Random(1);
+		Term.FoldStack stack = new Term.FoldStack();
+		for (int i = 0; i < 2000; ++i) {
+			Term term = randomTerm(random, random.nextInt(9));
+
+			assertEquals(renderRecursively(term), term.fold(RENDER));
+			// A reused stack gives the same results
+			assertEquals(renderRecursively(term), term.fold(RENDER, stack));
+			assertEquals(Integer.valueOf(depthRecursively(term)), term.fold(DEPTH, stack));
+
+			PostOrder postOrder = new PostOrder();
+			assertEquals(Integer.valueOf(sizeRecursively(term) - 1), term.fold(postOrder, stack));
+			assertEquals(sizeRecursively(term), postOrder.folded.size());
+		}
+	}
+
+	@Test
+	public void foldsDeepRightNestedValue() {
+		Term term = Term.Cases.Var.of("x");
+		for (int i = 0; i < DEEP; ++i) {
+			term = Term.Cases.Fun.of("x", term);
+		}
+
+		PostOrder postOrder = new PostOrder();
+		assertEquals(Integer.valueOf(DEEP), term.fold(postOrder));
+		assertEquals(DEEP + 1, postOrder.folded.size());
+		assertEquals(Integer.valueOf(DEEP + 1), term.fold(DEPTH));
+	}
+
+	@Test
+	public void foldsDeepLeftNestedValue() {
+		Term term = Term.Cases.Var.of("f");
+		for (int i = 0; i < DEEP; ++i) {
+			term = Term.Cases.App.of(term, Term.Cases.Var.of("v" + (i % 10)));
+		}
+
+		Term.FoldStack stack = new Term.FoldStack();
+		for (int pass = 0; pass < 2; ++pass) {
+			PostOrder postOrder = new PostOrder();
+			assertEquals(Integer.valueOf(2 * DEEP), term.fold(postOrder, stack));
+			assertEquals(2 * DEEP + 1, postOrder.folded.size());
+		}
+		assertEquals(Integer.valueOf(DEEP + 1), term.fold(DEPTH, stack));
+	}
+}
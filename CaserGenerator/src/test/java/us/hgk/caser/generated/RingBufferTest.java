@@ -0,0 +1,198 @@
+package us.hgk.caser.generated;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@code RingBuffer} generated for a union with
+ * {@code ringBuffer: true}, with several producer threads and one consumer.
+ */
+public class RingBufferTest {
+	private static final int PRODUCERS = 4;
+
+	// How the consumer removes values from the ring
+	private enum Removal {
+		POLL, TAKE, DRAIN_TO_ACCEPTOR, DRAIN_TO_HANDLER
+	}
+
+	// Checks that each producer's values arrive exactly once and in the order
+	// they were added
+	private static final class Checker extends Event.Actions implements Event.Acceptor {
+		private final int valuesPerProducer;
+		private final int[] next = new int[PRODUCERS];
+		private int done;
+
+		Checker(int valuesPerProducer) {
+			this.valuesPerProducer = valuesPerProducer;
+		}
+
+		@Override
+		public void ifItem(Event.Cases.Item valueOfEvent, int producer, int sequence) {
+			assertEquals("Value of producer " + producer + " lost, repeated or out of order", next[producer],
+					sequence);
+			++next[producer];
+		}
+
+		@Override
+		public void ifDone(Event.Cases.Done valueOfEvent, int producer) {
+			assertEquals("Producer " + producer + " done before all its values arrived", valuesPerProducer,
+					next[producer]);
+			++done;
+		}
+
+		@Override
+		public void unhandled(Event valueOfEvent) {
+			fail("Unexpected value: " + valueOfEvent);
+		}
+
+		@Override
+		public void acceptEvent(Event valueOfEvent) {
+			Event.dispatch(valueOfEvent, this);
+		}
+	}
+
+	private static void stress(Event.RingBuffer.WaitStrategy waitStrategy, Removal removal, int capacity,
+			final int valuesPerProducer) throws InterruptedException {
+		final Event.RingBuffer ring = new Event.RingBuffer(capacity, waitStrategy);
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+		List<Thread> producers = new ArrayList<>();
+		for (int p = 0; p < PRODUCERS; ++p) {
+			final int producer = p;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						// Half the producers add values through an issuer
+						if (producer % 2 == 0) {
+							Event.Issuer issuer = Event.supplierTo(ring);
+							for (int i = 0; i < valuesPerProducer; ++i) {
+								issuer.doItem(producer, i);
+							}
+							issuer.doDone(producer);
+						} else {
+							for (int i = 0; i < valuesPerProducer; ++i) {
+								ring.acceptEvent(Event.Cases.Item.of(producer, i));
+							}
+							ring.acceptEvent(Event.Cases.Done.of(producer));
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			}, "producer-" + p);
+			thread.setDaemon(true);
+			thread.start();
+			producers.add(thread);
+		}
+
+		Checker checker = new Checker(valuesPerProducer);
+		start.countDown();
+		while (checker.done < PRODUCERS && failure.get() == null) {
+			switch (removal) {
+			case POLL: {
+				Event value = ring.poll();
+				if (value == null) {
+					Thread.yield();
+				} else {
+					checker.acceptEvent(value);
+				}
+				break;
+			}
+			case TAKE:
+				checker.acceptEvent(ring.take());
+				break;
+			case DRAIN_TO_ACCEPTOR:
+				if (ring.drainTo((Event.Acceptor) checker, 16) == 0) {
+					Thread.yield();
+				}
+				break;
+			case DRAIN_TO_HANDLER:
+				if (ring.drainTo((Event.Actions) checker, 16) == 0) {
+					Thread.yield();
+				}
+				break;
+			}
+		}
+
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError("A producer failed", failure.get());
+		}
+		for (int p = 0; p < PRODUCERS; ++p) {
+			assertEquals(valuesPerProducer, checker.next[p]);
+		}
+		assertNull(ring.poll());
+		assertEquals(0, ring.size());
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWithPoll() throws InterruptedException {
+		stress(Event.RingBuffer.WaitStrategy.YIELD, Removal.POLL, 64, 100000);
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWithTake() throws InterruptedException {
+		stress(Event.RingBuffer.WaitStrategy.YIELD, Removal.TAKE, 64, 100000);
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWithDrainToAcceptor() throws InterruptedException {
+		stress(Event.RingBuffer.WaitStrategy.YIELD, Removal.DRAIN_TO_ACCEPTOR, 64, 100000);
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWithDrainToHandler() throws InterruptedException {
+		stress(Event.RingBuffer.WaitStrategy.YIELD, Removal.DRAIN_TO_HANDLER, 64, 100000);
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWhenParking() throws InterruptedException {
+		stress(Event.RingBuffer.WaitStrategy.PARK, Removal.TAKE, 64, 100000);
+	}
+
+	@Test(timeout = 120000)
+	public void deliversEachValueOnceInOrderWhenSpinning() throws InterruptedException {
+		// Spinning threads only give way when preempted, so on a machine
+		// with fewer cores than threads a larger ring keeps this quick
+		stress(Event.RingBuffer.WaitStrategy.SPIN, Removal.TAKE, 4096, 20000);
+	}
+
+	@Test
+	public void offerFailsWhenFull() {
+		Event.RingBuffer ring = new Event.RingBuffer(3, Event.RingBuffer.WaitStrategy.SPIN);
+		assertEquals(4, ring.capacity());
+
+		List<Event> values = new ArrayList<>();
+		for (int lap = 0; lap < 3; ++lap) {
+			values.clear();
+			for (int i = 0; i < ring.capacity(); ++i) {
+				Event value = Event.Cases.Item.of(lap, i);
+				values.add(value);
+				assertTrue(ring.offer(value));
+			}
+			assertFalse(ring.offer(Event.Cases.Done.of(lap)));
+			assertEquals(ring.capacity(), ring.size());
+
+			for (Event value : values) {
+				assertSame(value, ring.poll());
+			}
+			assertNull(ring.poll());
+		}
+	}
+}
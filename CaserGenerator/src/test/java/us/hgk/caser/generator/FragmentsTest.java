@@ -0,0 +1,168 @@
+package us.hgk.caser.generator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import us.hgk.caser.generator.ConfigModels.Target;
+
+/**
+ * Tests that rendering a union with its fragments on a fork-join pool gives
+ * exactly the output of rendering it sequentially, for each target and for
+ * the benchmark template. The pool is passed explicitly, since
+ * {@link Fragments#poolFor(ResolvedModels.Union)} would render sequentially
+ * on a machine with a single processor.
+ */
+public class FragmentsTest {
+	// Enough renders of the same union for an unsafe interleaving of chunks to
+	// have a chance to show itself
+	private static final int PARALLEL_RENDERS = 3;
+
+	private static ForkJoinPool pool;
+
+	@BeforeClass
+	public static void startPool() {
+		pool = new ForkJoinPool(4);
+	}
+
+	@AfterClass
+	public static void stopPool() {
+		pool.shutdown();
+	}
+
+	private static ResolvedModels.Union resolve(String yaml, Target target) throws IOException {
+		ConfigModels.Union union = ConfigIO.readUnionFrom(yaml);
+		Command.overrideTarget(union, target);
+		Command.fixupUnionSpec(union);
+		return ResolvedModels.resolve(union);
+	}
+
+	private static String render(Templates.Loaded template, ResolvedModels.Union union, ForkJoinPool pool) {
+		StringWriter out = new StringWriter();
+		Command.applyTemplateToUnionSpec(template.getTemplate(), union, out, pool);
+		return out.toString();
+	}
+
+	private static void assertParallelMatchesSequential(String yaml, Target target) throws IOException {
+		ResolvedModels.Union union = resolve(yaml, target);
+		for (Templates.Loaded template : new Templates.Loaded[] { Templates.builtin(target), Templates.benchmark() }) {
+			String sequential = render(template, union, null);
+			assertTrue(sequential.contains(" " + union.getName() + " "));
+			for (int i = 0; i < PARALLEL_RENDERS; ++i) {
+				assertEquals(sequential, render(template, union, pool));
+			}
+		}
+		// The chunks really were rendered on the pool
+		assertTrue(pool.getPoolSize() > 0);
+	}
+
+	// A union of the given numbers of cases and handlers, with parameters of
+	// several kinds and the options that add per-case or per-handler code;
+	// binary serialization is left out, being limited to 255 cases
+	private static String synthesizeSpec(int caseCount, int handlerCount) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("packageName: org.example.synthetic\n");
+		sb.append("name: Synthetic\n");
+		sb.append("doc: A synthetic union\n");
+		sb.append("modifiers: public\n");
+		sb.append("primitiveDefaultHandlers: true\n");
+		sb.append("column: true\n");
+		sb.append("ringBuffer: true\n");
+
+		sb.append("cases:\n");
+		for (int i = 0; i < caseCount; ++i) {
+			sb.append("  - name: Case").append(i).append('\n');
+			sb.append("    doc: Case number ").append(i).append('\n');
+			switch (i % 4) {
+			case 1:
+				sb.append("    parameters:\n");
+				appendParameter(sb, "text", "String");
+				appendParameter(sb, "count", "int");
+				break;
+			case 2:
+				sb.append("    parameters:\n");
+				appendParameter(sb, "next", "Synthetic");
+				appendParameter(sb, "id", "long");
+				break;
+			case 3:
+				sb.append("    intern: true\n");
+				sb.append("    parameters:\n");
+				appendParameter(sb, "left", "Synthetic");
+				appendParameter(sb, "ratio", "double");
+				appendParameter(sb, "right", "Synthetic");
+				break;
+			default:
+				break;
+			}
+		}
+
+		String[] returnTypes = { null, "int", "<R>", "String", "boolean" };
+		sb.append("handlers:\n");
+		for (int i = 0; i < handlerCount; ++i) {
+			sb.append("  - name: Handler").append(i).append('\n');
+			sb.append("    doc: Handler number ").append(i).append('\n');
+			String returns = returnTypes[i % returnTypes.length];
+			if (returns != null) {
+				sb.append("    returns: \"").append(returns).append("\"\n");
+			}
+			if (i % 4 == 3) {
+				sb.append("    throws: [java.io.IOException]\n");
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private static void appendParameter(StringBuilder sb, String name, String type) {
+		sb.append("      - name: ").append(name).append('\n');
+		sb.append("        type: ").append(type).append('\n');
+		sb.append("        doc: The ").append(name).append('\n');
+	}
+
+	// src/test/specs/Term.yml, a resource of the tests
+	private static String termSpec() throws IOException {
+		try (InputStream in = FragmentsTest.class.getResourceAsStream("/Term.yml")) {
+			if (in == null) {
+				throw new FileNotFoundException("Term.yml is not on the test classpath");
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			return new String(bytes.toByteArray(), Charset.forName("UTF-8"));
+		}
+	}
+
+	@Test
+	public void termRendersAlikeInParallelForJava7() throws IOException {
+		assertParallelMatchesSequential(termSpec(), Target.JAVA7);
+	}
+
+	@Test
+	public void termRendersAlikeInParallelForJava17() throws IOException {
+		assertParallelMatchesSequential(termSpec(), Target.JAVA17);
+	}
+
+	@Test
+	public void largeUnionRendersAlikeInParallelForJava7() throws IOException {
+		assertParallelMatchesSequential(synthesizeSpec(400, 6), Target.JAVA7);
+	}
+
+	@Test
+	public void largeUnionRendersAlikeInParallelForJava17() throws IOException {
+		assertParallelMatchesSequential(synthesizeSpec(400, 6), Target.JAVA17);
+	}
+}
@@ -0,0 +1,125 @@
+package us.hgk.caser.generator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import org.junit.Test;
+
+import us.hgk.caser.generator.ConfigModels.Target;
+
+/**
+ * Tests that each resolved model's {@link ResolvedModels.Model#property}
+ * returns what the corresponding getter does, so that templates render alike
+ * with {@link ModelValueResolver} and with Handlebars' reflective resolvers.
+ */
+public class ResolvedModelsTest {
+	private static final String SPEC = "packageName: org.example.models\n" //
+			+ "name: Node\n" //
+			+ "doc: A node\n" //
+			+ "modifiers: public\n" //
+			+ "primitiveDefaultHandlers: true\n" //
+			+ "binarySerialization: true\n" //
+			+ "column: true\n" //
+			+ "ringBuffer: true\n" //
+			+ "cases:\n" //
+			+ "  - name: Leaf\n" //
+			+ "    doc: A leaf\n" //
+			+ "    parameters:\n" //
+			+ "      - name: label\n" //
+			+ "        type: String\n" //
+			+ "        doc: The label\n" //
+			+ "      - name: weight\n" //
+			+ "        type: double\n" //
+			+ "        doc: The weight\n" //
+			+ "  - name: Branch\n" //
+			+ "    doc: A branch\n" //
+			+ "    intern: true\n" //
+			+ "    parameters:\n" //
+			+ "      - name: left\n" //
+			+ "        type: Node\n" //
+			+ "        doc: The left node\n" //
+			+ "      - name: right\n" //
+			+ "        type: Node\n" //
+			+ "        doc: The right node\n" //
+			+ "  - name: Empty\n" //
+			+ "    doc: Nothing\n" //
+			+ "handlers:\n" //
+			+ "  - name: Measure\n" //
+			+ "    doc: Measures a node\n" //
+			+ "    returns: \"<R>\"\n" //
+			+ "    throws: [java.io.IOException]\n";
+
+	private static ResolvedModels.Union resolve(Target target) throws IOException {
+		ConfigModels.Union union = ConfigIO.readUnionFrom(SPEC);
+		Command.overrideTarget(union, target);
+		Command.fixupUnionSpec(union);
+		return ResolvedModels.resolve(union);
+	}
+
+	// The property read by a getter, or null if the method is not a getter
+	private static String propertyOf(Method method) {
+		if (!Modifier.isPublic(method.getModifiers()) || Modifier.isStatic(method.getModifiers())
+				|| method.getParameterTypes().length != 0 || method.getDeclaringClass() == Object.class) {
+			return null;
+		}
+		String name = method.getName();
+		int prefix;
+		if (name.startsWith("get") && name.length() > 3) {
+			prefix = 3;
+		} else if (name.startsWith("is") && name.length() > 2) {
+			prefix = 2;
+		} else {
+			return null;
+		}
+		return Character.toLowerCase(name.charAt(prefix)) + name.substring(prefix + 1);
+	}
+
+	// Checks every getter of model, and of the models reachable from it
+	private static void assertPropertiesMatchGetters(ResolvedModels.Model root)
+			throws IllegalAccessException, InvocationTargetException {
+		IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+		List<ResolvedModels.Model> pending = new ArrayList<>();
+		pending.add(root);
+		while (!pending.isEmpty()) {
+			ResolvedModels.Model model = pending.remove(pending.size() - 1);
+			if (seen.put(model, Boolean.TRUE) != null) {
+				continue;
+			}
+			for (Method method : model.getClass().getMethods()) {
+				String property = propertyOf(method);
+				if (property == null) {
+					continue;
+				}
+				Object value = method.invoke(model);
+				assertEquals(model.getClass().getSimpleName() + "." + property, value, model.property(property));
+
+				if (value instanceof ResolvedModels.Model) {
+					pending.add((ResolvedModels.Model) value);
+				} else if (value instanceof List) {
+					for (Object item : (List<?>) value) {
+						if (item instanceof ResolvedModels.Model) {
+							pending.add((ResolvedModels.Model) item);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void propertiesMatchGettersForJava7() throws Exception {
+		assertPropertiesMatchGetters(resolve(Target.JAVA7));
+	}
+
+	@Test
+	public void propertiesMatchGettersForJava17() throws Exception {
+		assertPropertiesMatchGetters(resolve(Target.JAVA17));
+	}
+}
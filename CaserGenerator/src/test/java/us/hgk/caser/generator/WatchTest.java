@@ -0,0 +1,125 @@
+package us.hgk.caser.generator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that {@link Watch} keeps regenerating specs through changes to the
+ * watched directories that it cannot follow.
+ */
+public class WatchTest {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// How long to wait for a change to a spec to show in its output
+	private static final long REGENERATION_TIMEOUT_MILLIS = 20000;
+
+	// How many short-lived directory trees to create and delete, each a race
+	// between the deletion and the watch registering and searching the tree
+	private static final int VANISHING_TREES = 200;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	private static String spec(String doc) {
+		return "packageName: org.example.watched\n" //
+				+ "name: Shape\n" //
+				+ "doc: " + doc + "\n" //
+				+ "modifiers: public\n" //
+				+ "cases:\n" //
+				+ "  - name: Dot\n" //
+				+ "    doc: A dot\n";
+	}
+
+	// Writes the spec with the given doc until its output contains the doc,
+	// rewriting it in case the watch had not yet registered the directory;
+	// fails at once if the watch has failed
+	private static void regenerateWithDoc(Path spec, Path output, String doc, AtomicReference<Throwable> failure)
+			throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + REGENERATION_TIMEOUT_MILLIS;
+		while (System.currentTimeMillis() < deadline) {
+			if (failure.get() != null) {
+				throw new AssertionError("Watch failed", failure.get());
+			}
+			Files.write(spec, spec(doc).getBytes(UTF_8));
+			for (int i = 0; i < 10; ++i) {
+				Thread.sleep(50);
+				if (Files.isRegularFile(output) && new String(Files.readAllBytes(output), UTF_8).contains(doc)) {
+					return;
+				}
+			}
+		}
+		throw new AssertionError("Spec with doc \"" + doc + "\" was not regenerated");
+	}
+
+	private static void deleteTree(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	@Test(timeout = 120000)
+	public void keepsWatchingAfterSubdirectoryVanishes() throws Exception {
+		Path specDir = temp.newFolder("specs").toPath();
+		Path outDir = temp.newFolder("out").toPath();
+		Path spec = specDir.resolve("Shape.yml");
+		Path output = outDir.resolve("org/example/watched/Shape.java");
+
+		Batch batch = new Batch(Templates.builtin(), null, null, outDir, 1, false, null);
+		final Watch watch = new Watch(batch, Collections.singletonList(specDir));
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					watch.run();
+				} catch (InterruptedException e) {
+					// Stopped by the test
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		}, "watch");
+		thread.setDaemon(true);
+		thread.start();
+
+		try {
+			regenerateWithDoc(spec, output, "A shape before", failure);
+
+			for (int i = 0; i < VANISHING_TREES; ++i) {
+				Path tree = specDir.resolve("tmp-" + i);
+				Files.createDirectories(tree.resolve("a/b/c"));
+				Files.write(tree.resolve("a/Other.yml"), spec("Another shape").getBytes(UTF_8));
+				deleteTree(tree);
+			}
+
+			regenerateWithDoc(spec, output, "A shape after", failure);
+			assertTrue(thread.isAlive());
+		} finally {
+			thread.interrupt();
+			thread.join();
+		}
+	}
+}